@@ -0,0 +1,303 @@
+package me.xginko.villageroptimizer;
+
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
+import me.xginko.villageroptimizer.enums.OptimizationType;
+import me.xginko.villageroptimizer.wrapper.WrappedVillager;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.Villager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.inventory.InventoryCloseEvent;
+import org.bukkit.event.inventory.InventoryType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Applies optimization state changes to villagers.
+ * A single change made on the villager's own thread is applied right away. Changes made from another thread, or more
+ * changes than the configurable amount per tick, are collected per region and applied by a single task per region
+ * and tick, so mass optimizations are spread over multiple ticks instead of causing a lag spike.
+ * Each villager has at most one pending change, newer changes replace older ones.
+ * Changes for villagers that are currently trading are held back until the trade window is closed.
+ */
+public final class PendingOptimizations implements Listener {
+
+    // Groups villagers by 32x32 chunk areas on Folia. Villagers of an area that is split over
+    // multiple regions are handed to their own region when the area is flushed.
+    private static final int AREA_SHIFT = 5;
+
+    private final @NotNull Map<UUID, PendingChange> pendingChanges;
+    private final @NotNull Map<AreaKey, AreaQueue> areaQueues;
+
+    public PendingOptimizations() {
+        this.pendingChanges = new HashMap<>();
+        this.areaQueues = new HashMap<>();
+    }
+
+    public void enable() {
+        VillagerOptimizer plugin = VillagerOptimizer.getInstance();
+        plugin.getServer().getPluginManager().registerEvents(this, plugin);
+    }
+
+    /**
+     * Stops listening and applies all pending changes right away, since nothing would apply them afterwards.
+     * Changes of villagers owned by another region on Folia are handed to that region, unless the plugin is shutting down.
+     */
+    public void disable() {
+        HandlerList.unregisterAll(this);
+        final List<PendingChange> remaining;
+        synchronized (pendingChanges) {
+            remaining = new ArrayList<>(pendingChanges.values());
+            pendingChanges.clear();
+            areaQueues.clear();
+        }
+        for (PendingChange change : remaining) {
+            final Villager villager = change.villager;
+            if (isOwnedByCurrentThread(villager)) {
+                if (villager.isValid()) change.wrappedVillager.applyOptimizationType(change.type);
+            } else if (VillagerOptimizer.getInstance().isEnabled()) {
+                VillagerOptimizer.getFoliaLib().getImpl().runAtEntity(villager, apply -> {
+                    if (villager.isValid()) change.wrappedVillager.applyOptimizationType(change.type);
+                });
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (pendingChanges) {
+            return pendingChanges.size();
+        }
+    }
+
+    /**
+     * @return The OptimizationType the villager is going to be set to, or null if there is no pending change.
+     */
+    public @Nullable OptimizationType pendingType(@NotNull UUID villagerUID) {
+        synchronized (pendingChanges) {
+            final PendingChange change = pendingChanges.get(villagerUID);
+            return change == null ? null : change.type;
+        }
+    }
+
+    /**
+     * Sets the villager to the given OptimizationType. The change is applied right away if it is made on the
+     * villager's own thread while it is not trading and the per tick amount of its region isn't used up yet,
+     * otherwise during one of the next ticks, once the villager is not trading.
+     */
+    public void submit(@NotNull WrappedVillager wrappedVillager, @NotNull OptimizationType type) {
+        final Villager villager = wrappedVillager.villager();
+        final boolean applicableNow = isOwnedByCurrentThread(villager) && !villager.isTrading();
+        synchronized (pendingChanges) {
+            final PendingChange previous = pendingChanges.get(villager.getUniqueId());
+            if (previous != null) {
+                // Already queued or waiting for a trade window to close, last write wins
+                previous.villager = villager;
+                previous.wrappedVillager = wrappedVillager;
+                previous.type = type;
+                return;
+            }
+            final AreaQueue areaQueue = getOrCreateAreaQueue(villager.getLocation());
+            if (!applicableNow || !areaQueue.villagers.isEmpty() || areaQueue.appliedNow >= budget()) {
+                pendingChanges.put(villager.getUniqueId(), new PendingChange(villager, wrappedVillager, type));
+                enqueue(villager, areaQueue);
+                return;
+            }
+            areaQueue.appliedNow++;
+            // Resets the amount of changes applied right away with the next tick
+            schedule(areaQueue);
+        }
+        wrappedVillager.applyOptimizationType(type);
+    }
+
+    /**
+     * Drops a pending change of the villager and applies the given OptimizationType right away, ignoring the per
+     * tick amount. Needs to be called on the villager's thread while it is not trading.
+     */
+    public void applyNow(@NotNull WrappedVillager wrappedVillager, @NotNull OptimizationType type) {
+        synchronized (pendingChanges) {
+            pendingChanges.remove(wrappedVillager.villager().getUniqueId());
+        }
+        wrappedVillager.applyOptimizationType(type);
+    }
+
+    private static int budget() {
+        return Math.max(1, VillagerOptimizer.getConfiguration().max_optimization_changes_per_tick);
+    }
+
+    /**
+     * Needs to be called while holding the lock on pendingChanges.
+     */
+    private @NotNull AreaQueue getOrCreateAreaQueue(@NotNull Location location) {
+        final AreaKey areaKey = VillagerOptimizer.getFoliaLib().isFolia() ?
+                new AreaKey(location.getWorld().getUID(), location.getBlockX() >> 4 >> AREA_SHIFT, location.getBlockZ() >> 4 >> AREA_SHIFT) :
+                AreaKey.MAIN_THREAD;
+        AreaQueue areaQueue = areaQueues.get(areaKey);
+        if (areaQueue == null) {
+            areaQueue = new AreaQueue(areaKey, location);
+            areaQueues.put(areaKey, areaQueue);
+        }
+        return areaQueue;
+    }
+
+    /**
+     * Needs to be called while holding the lock on pendingChanges.
+     */
+    private void enqueue(@NotNull Villager villager, @NotNull AreaQueue areaQueue) {
+        pendingChanges.get(villager.getUniqueId()).queued = true;
+        areaQueue.villagers.add(villager);
+        schedule(areaQueue);
+    }
+
+    /**
+     * Needs to be called while holding the lock on pendingChanges.
+     */
+    private void schedule(@NotNull AreaQueue areaQueue) {
+        if (!areaQueue.scheduled) {
+            areaQueue.scheduled = true;
+            VillagerOptimizer.getFoliaLib().getImpl().runAtLocation(areaQueue.anchor, flush -> flush(areaQueue));
+        }
+    }
+
+    private void flush(@NotNull AreaQueue areaQueue) {
+        int budget = budget();
+        synchronized (pendingChanges) {
+            areaQueue.appliedNow = 0;
+        }
+
+        while (budget > 0) {
+            final Villager villager;
+            synchronized (pendingChanges) {
+                villager = areaQueue.villagers.poll();
+                if (villager == null) break;
+                final PendingChange change = pendingChanges.get(villager.getUniqueId());
+                if (change == null) continue; // Was applied when the villager left the world
+                change.queued = false;
+            }
+
+            if (!isOwnedByCurrentThread(villager)) {
+                VillagerOptimizer.getFoliaLib().getImpl().runAtEntity(villager, apply -> {
+                    if (!villager.isTrading()) applyPending(villager);
+                });
+            } else if (!villager.isTrading()) {
+                applyPending(villager);
+            }
+            // Trading villagers stay pending until their trade window is closed
+            budget--;
+        }
+
+        synchronized (pendingChanges) {
+            if (areaQueue.villagers.isEmpty()) {
+                areaQueue.scheduled = false;
+                areaQueues.remove(areaQueue.key);
+            } else {
+                // Over budget, continue next tick
+                VillagerOptimizer.getFoliaLib().getImpl().runAtLocation(areaQueue.anchor, flush -> flush(areaQueue));
+            }
+        }
+    }
+
+    private void applyPending(@NotNull Villager villager) {
+        final PendingChange change;
+        synchronized (pendingChanges) {
+            change = pendingChanges.remove(villager.getUniqueId());
+        }
+        if (change != null) {
+            change.wrappedVillager.applyOptimizationType(change.type);
+        }
+    }
+
+    private static boolean isOwnedByCurrentThread(@NotNull Villager villager) {
+        if (VillagerOptimizer.getFoliaLib().isFolia()) {
+            return Bukkit.isOwnedByCurrentRegion(villager);
+        } else {
+            return Bukkit.isPrimaryThread();
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onInventoryClose(InventoryCloseEvent event) {
+        if (event.getInventory().getType() != InventoryType.MERCHANT) return;
+        if (!(event.getInventory().getHolder() instanceof Villager)) return;
+        final Villager villager = (Villager) event.getInventory().getHolder();
+
+        synchronized (pendingChanges) {
+            final PendingChange change = pendingChanges.get(villager.getUniqueId());
+            // The trading player is only cleared after the event, queueing makes it apply on the next tick
+            if (change != null && !change.queued) enqueue(villager, getOrCreateAreaQueue(villager.getLocation()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onEntityRemove(EntityRemoveFromWorldEvent event) {
+        if (event.getEntityType() != EntityType.VILLAGER) return;
+        // Nobody can trade with a villager that left the world, so don't keep the change around
+        applyPending((Villager) event.getEntity());
+    }
+
+    private static final class PendingChange {
+        // Keeps a weakly referenced villager from being collected before its wrapper is applied
+        @NotNull Villager villager;
+        @NotNull WrappedVillager wrappedVillager;
+        @NotNull OptimizationType type;
+        boolean queued;
+
+        PendingChange(@NotNull Villager villager, @NotNull WrappedVillager wrappedVillager, @NotNull OptimizationType type) {
+            this.villager = villager;
+            this.wrappedVillager = wrappedVillager;
+            this.type = type;
+        }
+    }
+
+    private static final class AreaQueue {
+        final @NotNull AreaKey key;
+        final @NotNull Location anchor;
+        final @NotNull ArrayDeque<Villager> villagers;
+        boolean scheduled;
+        int appliedNow;
+
+        AreaQueue(@NotNull AreaKey key, @NotNull Location anchor) {
+            this.key = key;
+            this.anchor = anchor;
+            this.villagers = new ArrayDeque<>();
+        }
+    }
+
+    private static final class AreaKey {
+        // Without Folia, everything runs on the main thread, so all changes share one budget
+        static final AreaKey MAIN_THREAD = new AreaKey(new UUID(0L, 0L), 0, 0);
+
+        final @NotNull UUID worldUID;
+        final int x, z;
+
+        AreaKey(@NotNull UUID worldUID, int x, int z) {
+            this.worldUID = worldUID;
+            this.x = x;
+            this.z = z;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof AreaKey)) return false;
+            final AreaKey other = (AreaKey) o;
+            return x == other.x && z == other.z && worldUID.equals(other.worldUID);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(worldUID, x, z);
+        }
+    }
+}
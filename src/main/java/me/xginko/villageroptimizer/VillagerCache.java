@@ -1,42 +1,232 @@
 package me.xginko.villageroptimizer;
 
+import com.destroystokyo.paper.event.entity.EntityAddToWorldEvent;
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.tcoded.folialib.wrapper.task.WrappedTask;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import me.xginko.villageroptimizer.config.Config;
 import me.xginko.villageroptimizer.wrapper.WrappedVillager;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
 import org.bukkit.entity.Villager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.time.Duration;
+import java.util.Collection;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 
-public final class VillagerCache {
+public final class VillagerCache implements Listener {
+
+    private static final long INVALID_ENTRY_SWEEP_TICKS = 200L;
+    // Power of two, so the stripe of an entity id is just its lowest bits
+    private static final int ENTITY_ID_STRIPES = 16;
 
     private final @NotNull Cache<UUID, WrappedVillager> villagerCache;
+    private final @Nullable Int2ObjectOpenHashMap<WrappedVillager>[] entityIdCache;
+    private volatile @Nullable VillagerChunkIndex chunkIndex;
+    private final boolean lifecycle_bound, weak_entity_references;
+    private final @NotNull LongAdder entityIdHits, entityIdMisses, createdWrappers;
+    private WrappedTask invalidEntrySweep;
+
+    public VillagerCache(@NotNull Config config) {
+        // Entity ids are only valid while the entity is loaded, so keying by them requires lifecycle binding
+        this.lifecycle_bound = config.lifecycle_bound_cache || config.cache_by_entity_id;
+        this.weak_entity_references = config.weak_entity_references;
+        this.entityIdCache = config.cache_by_entity_id ? newEntityIdStripes() : null;
+        this.entityIdHits = new LongAdder();
+        this.entityIdMisses = new LongAdder();
+        this.createdWrappers = new LongAdder();
+        if (lifecycle_bound) {
+            // Entries are added and removed by entity lifecycle events, so there is nothing to expire
+            this.villagerCache = Caffeine.newBuilder().recordStats().build();
+        } else {
+            this.villagerCache = Caffeine.newBuilder().recordStats().expireAfterWrite(Duration.ofSeconds(config.cache_keep_time_seconds)).build();
+        }
+        this.chunkIndex = config.index_villagers_by_chunk ? new VillagerChunkIndex(this, weak_entity_references) : null;
+    }
+
+    /**
+     * Entity id lookups happen on every event that touches a villager, so a single lock would make all Folia
+     * regions wait on each other. Each stripe has its own lock instead.
+     */
+    @SuppressWarnings("unchecked")
+    private static @NotNull Int2ObjectOpenHashMap<WrappedVillager>[] newEntityIdStripes() {
+        final Int2ObjectOpenHashMap<WrappedVillager>[] stripes = new Int2ObjectOpenHashMap[ENTITY_ID_STRIPES];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Int2ObjectOpenHashMap<>();
+        }
+        return stripes;
+    }
 
-    public VillagerCache(long expireAfterWriteSeconds) {
-        this.villagerCache = Caffeine.newBuilder().expireAfterWrite(Duration.ofSeconds(expireAfterWriteSeconds)).build();
+    private @NotNull Int2ObjectOpenHashMap<WrappedVillager> entityIdStripe(int entityId) {
+        // Entity ids are handed out in sequence, so neighbouring villagers end up in different stripes
+        return entityIdCache[entityId & (ENTITY_ID_STRIPES - 1)];
     }
 
+    public void enable() {
+        VillagerOptimizer plugin = VillagerOptimizer.getInstance();
+        if (lifecycle_bound) {
+            plugin.getServer().getPluginManager().registerEvents(this, plugin);
+        }
+        if (chunkIndex != null) {
+            chunkIndex.enable();
+        }
+        if (weak_entity_references) {
+            this.invalidEntrySweep = VillagerOptimizer.getFoliaLib().getImpl()
+                    .runTimer(this::dropInvalidEntries, INVALID_ENTRY_SWEEP_TICKS, INVALID_ENTRY_SWEEP_TICKS);
+        }
+    }
+
+    public void disable() {
+        HandlerList.unregisterAll(this);
+        if (invalidEntrySweep != null) invalidEntrySweep.cancel();
+        if (chunkIndex != null) {
+            chunkIndex.disable();
+        }
+        clear();
+    }
+
+    /**
+     * With weak entity references enabled, wrappers in this map may have lost their villager,
+     * use {@link WrappedVillager#villagerIfPresent()} when iterating it.
+     */
     public @NotNull ConcurrentMap<UUID, WrappedVillager> cacheMap() {
         return this.villagerCache.asMap();
     }
 
+    public @Nullable VillagerChunkIndex chunkIndex() {
+        return this.chunkIndex;
+    }
+
+    /**
+     * Creates the chunk index if it isn't enabled in the config, for modules that depend on per-chunk villager counts.
+     * The index only listens to villagers being added, removed or teleported, so it doesn't add any per-tick listeners.
+     */
+    public synchronized @NotNull VillagerChunkIndex requireChunkIndex() {
+        if (chunkIndex == null) {
+            final VillagerChunkIndex chunkIndex = new VillagerChunkIndex(this, weak_entity_references);
+            this.chunkIndex = chunkIndex;
+            chunkIndex.enable();
+        }
+        return chunkIndex;
+    }
+
+    /**
+     * @return Hit, miss and eviction counts of the cache, including lookups by entity id if enabled.
+     */
+    public @NotNull CacheStats stats() {
+        final CacheStats stats = this.villagerCache.stats();
+        if (entityIdCache == null) return stats;
+        return stats.plus(new CacheStats(entityIdHits.sum(), entityIdMisses.sum(), 0L, 0L, 0L, 0L, 0L));
+    }
+
+    /**
+     * @return The amount of villager wrappers that had to be created since the cache was built.
+     */
+    public long createdWrappers() {
+        return this.createdWrappers.sum();
+    }
+
+    /**
+     * @return The current amount of cached villagers.
+     */
+    public long size() {
+        if (entityIdCache != null) {
+            long size = 0;
+            for (Int2ObjectOpenHashMap<WrappedVillager> stripe : entityIdCache) {
+                synchronized (stripe) {
+                    size += stripe.size();
+                }
+            }
+            return size;
+        }
+        return this.villagerCache.estimatedSize();
+    }
+
     public void clear() {
         this.villagerCache.asMap().clear();
+        if (entityIdCache != null) {
+            for (Int2ObjectOpenHashMap<WrappedVillager> stripe : entityIdCache) {
+                synchronized (stripe) {
+                    stripe.clear();
+                }
+            }
+        }
     }
 
     public @NotNull WrappedVillager getOrAdd(@NotNull Villager villager) {
+        if (entityIdCache != null) {
+            return this.getOrAddByEntityId(villager);
+        }
+
         WrappedVillager wrappedVillager = this.villagerCache.getIfPresent(villager.getUniqueId());
-        return wrappedVillager == null ? this.add(new WrappedVillager(villager)) : this.add(wrappedVillager);
+        if (wrappedVillager == null || (weak_entity_references && wrappedVillager.villagerIfPresent() != villager)) {
+            wrappedVillager = new WrappedVillager(villager);
+            createdWrappers.increment();
+            if (chunkIndex != null && villager.isValid()) chunkIndex.index(villager, wrappedVillager.isOptimized());
+        } else if (lifecycle_bound) {
+            // Entry lives until the entity is removed from the world, no need to refresh it
+            return wrappedVillager;
+        }
+        return this.add(wrappedVillager);
+    }
+
+    /**
+     * Resolves the wrapper using the runtime entity id of the villager, which avoids hashing the UUID
+     * and boxing a key on every lookup. The UUID mapping is only kept up to date for {@link #cacheMap()}.
+     */
+    private @NotNull WrappedVillager getOrAddByEntityId(@NotNull Villager villager) {
+        final int entityId = villager.getEntityId();
+        final Int2ObjectOpenHashMap<WrappedVillager> stripe = entityIdStripe(entityId);
+        WrappedVillager wrappedVillager;
+        synchronized (stripe) {
+            wrappedVillager = stripe.get(entityId);
+        }
+        // The entry may outlive its villager in weak mode if the removal was missed
+        if (wrappedVillager != null && (!weak_entity_references || wrappedVillager.villagerIfPresent() == villager)) {
+            entityIdHits.increment();
+            return wrappedVillager;
+        }
+
+        entityIdMisses.increment();
+        wrappedVillager = new WrappedVillager(villager);
+        createdWrappers.increment();
+        synchronized (stripe) {
+            final WrappedVillager present = stripe.get(entityId);
+            if (present != null && present.villagerIfPresent() == villager) return present;
+            stripe.put(entityId, wrappedVillager);
+        }
+        this.villagerCache.put(villager.getUniqueId(), wrappedVillager);
+        if (chunkIndex != null && villager.isValid()) chunkIndex.index(villager, wrappedVillager.isOptimized());
+        return wrappedVillager;
     }
 
     public @NotNull WrappedVillager add(@NotNull WrappedVillager villager) {
+        if (entityIdCache != null) {
+            final int entityId = villager.villager().getEntityId();
+            final Int2ObjectOpenHashMap<WrappedVillager> stripe = entityIdStripe(entityId);
+            synchronized (stripe) {
+                stripe.put(entityId, villager);
+            }
+        }
         this.villagerCache.put(villager.villager().getUniqueId(), villager);
         return villager;
     }
 
     public @NotNull WrappedVillager add(@NotNull Villager villager) {
+        createdWrappers.increment();
         return this.add(new WrappedVillager(villager));
     }
 
@@ -49,6 +239,106 @@ public final class VillagerCache {
     }
 
     public boolean contains(@NotNull Villager villager) {
+        if (entityIdCache != null) {
+            final Int2ObjectOpenHashMap<WrappedVillager> stripe = entityIdStripe(villager.getEntityId());
+            synchronized (stripe) {
+                return stripe.containsKey(villager.getEntityId());
+            }
+        }
         return this.contains(villager.getUniqueId());
     }
-}
\ No newline at end of file
+
+    /**
+     * Drops all wrappers whose villager was garbage collected or is no longer valid,
+     * so neither the cache nor the chunk index keep unloaded entities around.
+     */
+    private void dropInvalidEntries() {
+        this.villagerCache.asMap().values().removeIf(wrapped -> {
+            final Villager villager = wrapped.villagerIfPresent();
+            if (villager != null && villager.isValid()) return false;
+            if (villager != null && chunkIndex != null) chunkIndex.unindex(villager);
+            return true;
+        });
+        if (entityIdCache != null) {
+            for (Int2ObjectOpenHashMap<WrappedVillager> stripe : entityIdCache) {
+                synchronized (stripe) {
+                    stripe.values().removeIf(wrapped -> wrapped.villagerIfPresent() == null || !wrapped.villagerIfPresent().isValid());
+                }
+            }
+        }
+        this.villagerCache.cleanUp();
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    private void onEntityAdd(EntityAddToWorldEvent event) {
+        if (event.getEntityType() != EntityType.VILLAGER) return;
+        final Villager villager = (Villager) event.getEntity();
+        if (entityIdCache != null) {
+            this.getOrAddByEntityId(villager);
+            return;
+        }
+        // Replace wrappers of a previous entity instance, for example after a dimension change
+        this.villagerCache.asMap().compute(villager.getUniqueId(), (uuid, wrapped) -> {
+            if (wrapped != null && villager.equals(wrapped.villagerIfPresent())) return wrapped;
+            createdWrappers.increment();
+            return new WrappedVillager(villager);
+        });
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onEntityRemove(EntityRemoveFromWorldEvent event) {
+        if (event.getEntityType() != EntityType.VILLAGER) return;
+        final Villager villager = (Villager) event.getEntity();
+        if (entityIdCache != null) {
+            final Int2ObjectOpenHashMap<WrappedVillager> stripe = entityIdStripe(villager.getEntityId());
+            synchronized (stripe) {
+                stripe.remove(villager.getEntityId());
+            }
+        }
+        // Only drop the entry if it still belongs to this entity instance
+        this.villagerCache.asMap().computeIfPresent(villager.getUniqueId(), (uuid, wrapped) ->
+                villager.equals(wrapped.villagerIfPresent()) ? null : wrapped);
+    }
+
+    /**
+     * Keeps the chunk index in line with a villager's optimization state.
+     */
+    public void updateChunkIndex(@NotNull Villager villager, boolean optimized) {
+        if (chunkIndex != null) chunkIndex.setOptimized(villager, optimized);
+    }
+
+    /**
+     * Collects all villagers inside a chunk, sorted by whether they are optimized or not.
+     * Uses the chunk index if enabled, otherwise scans all entities of the chunk.
+     */
+    public void collectVillagers(@NotNull Chunk chunk, @NotNull Collection<Villager> optimized, @NotNull Collection<Villager> unoptimized) {
+        if (chunkIndex != null) {
+            chunkIndex.collect(chunk.getWorld(), chunk.getX(), chunk.getZ(), optimized, unoptimized);
+            return;
+        }
+
+        for (Entity entity : chunk.getEntities()) {
+            if (entity.getType().equals(EntityType.VILLAGER)) {
+                Villager villager = (Villager) entity;
+                if (getOrAdd(villager).isOptimized()) {
+                    optimized.add(villager);
+                } else {
+                    unoptimized.add(villager);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects all villagers inside a box of the given radius around the center.
+     * Uses the chunk index if enabled, otherwise asks the world for nearby entities.
+     */
+    public void collectNearbyVillagers(@NotNull Location center, double radius, @NotNull Collection<Villager> villagers) {
+        if (chunkIndex != null) {
+            chunkIndex.collectNearby(center, radius, villagers);
+            return;
+        }
+
+        villagers.addAll(center.getNearbyEntitiesByType(Villager.class, radius, radius, radius));
+    }
+}
@@ -0,0 +1,396 @@
+package me.xginko.villageroptimizer;
+
+import com.destroystokyo.paper.event.entity.EntityAddToWorldEvent;
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
+import com.tcoded.folialib.wrapper.task.WrappedTask;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.Villager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityTeleportEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Secondary index of all loaded villagers, bucketed by world and packed chunk coordinates.
+ * Lets chunk and radius lookups iterate only villagers instead of every entity in range.
+ * Each world is locked on its own, so Folia regions of different worlds never wait on each other.
+ * Every indexed villager checks its chunk every few ticks on the thread that owns it, since listening
+ * to entity movement would make every mob on the server call an event. Reads never touch the villagers themselves.
+ */
+public final class VillagerChunkIndex implements Listener {
+
+    private static final long CHUNK_CHECK_TICKS = 5L;
+
+    private final @NotNull VillagerCache villagerCache;
+    private final @NotNull Map<UUID, WorldVillagers> worlds;
+    private final boolean weak_entity_references;
+
+    VillagerChunkIndex(@NotNull VillagerCache villagerCache, boolean weak_entity_references) {
+        this.villagerCache = villagerCache;
+        this.weak_entity_references = weak_entity_references;
+        this.worlds = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * The buckets and tracked villagers of a single world. All access is synchronized on the instance.
+     */
+    private static final class WorldVillagers {
+        private final @NotNull Long2ObjectOpenHashMap<ChunkVillagers> chunks;
+        private final @NotNull Map<Villager, Tracked> villagers;
+        private final boolean weak;
+
+        private WorldVillagers(boolean weak) {
+            this.weak = weak;
+            this.chunks = new Long2ObjectOpenHashMap<>();
+            // Weak keys let unloaded villagers be garbage collected even if their removal was missed
+            this.villagers = weak ? new WeakHashMap<>() : new HashMap<>();
+        }
+
+        private @NotNull ChunkVillagers getOrCreateBucket(long chunkKey) {
+            ChunkVillagers bucket = chunks.get(chunkKey);
+            if (bucket == null) {
+                bucket = new ChunkVillagers(chunkKey, weak);
+                chunks.put(chunkKey, bucket);
+            }
+            return bucket;
+        }
+
+        private @Nullable Tracked remove(@NotNull Villager villager) {
+            final Tracked tracked = villagers.remove(villager);
+            if (tracked == null) return null;
+            tracked.bucket.optimized.remove(villager);
+            tracked.bucket.unoptimized.remove(villager);
+            if (tracked.bucket.isEmpty()) chunks.remove(tracked.bucket.chunkKey);
+            return tracked;
+        }
+    }
+
+    private static final class ChunkVillagers {
+        private final long chunkKey;
+        private final @NotNull Set<Villager> optimized, unoptimized;
+
+        private ChunkVillagers(long chunkKey, boolean weak) {
+            this.chunkKey = chunkKey;
+            this.optimized = weak ? Collections.newSetFromMap(new WeakHashMap<>()) : new HashSet<>();
+            this.unoptimized = weak ? Collections.newSetFromMap(new WeakHashMap<>()) : new HashSet<>();
+        }
+
+        private boolean isEmpty() {
+            return optimized.isEmpty() && unoptimized.isEmpty();
+        }
+    }
+
+    private static final class Tracked {
+        private @NotNull ChunkVillagers bucket;
+        private @Nullable WrappedTask chunkCheck;
+
+        private Tracked(@NotNull ChunkVillagers bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    void enable() {
+        final VillagerOptimizer plugin = VillagerOptimizer.getInstance();
+        plugin.getServer().getPluginManager().registerEvents(this, plugin);
+        this.indexLoadedVillagers();
+    }
+
+    void disable() {
+        HandlerList.unregisterAll(this);
+        this.clear();
+    }
+
+    /**
+     * Indexes all villagers that were already loaded before the index existed.
+     * On Folia, every chunk is scanned on its owning region thread.
+     */
+    private void indexLoadedVillagers() {
+        final VillagerOptimizer plugin = VillagerOptimizer.getInstance();
+        for (World world : plugin.getServer().getWorlds()) {
+            if (VillagerOptimizer.getFoliaLib().isFolia()) {
+                for (Chunk chunk : world.getLoadedChunks()) {
+                    VillagerOptimizer.getFoliaLib().getImpl().runAtLocation(
+                            new Location(world, chunk.getX() << 4, 0, chunk.getZ() << 4), indexChunk -> {
+                                for (Entity entity : chunk.getEntities()) {
+                                    if (entity.getType() == EntityType.VILLAGER) {
+                                        final Villager villager = (Villager) entity;
+                                        index(villager, villagerCache.getOrAdd(villager).isOptimized());
+                                    }
+                                }
+                            });
+                }
+            } else {
+                for (Villager villager : world.getEntitiesByClass(Villager.class)) {
+                    index(villager, villagerCache.getOrAdd(villager).isOptimized());
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the villager to the bucket of the chunk it is currently in, if it is not indexed yet,
+     * and starts checking its chunk on the thread that owns it.
+     */
+    public void index(@NotNull Villager villager, boolean optimized) {
+        final Location location = villager.getLocation();
+        final WorldVillagers world = getOrCreateWorld(location.getWorld().getUID());
+        final Tracked tracked;
+        synchronized (world) {
+            if (world.villagers.containsKey(villager)) return;
+            final ChunkVillagers bucket = world.getOrCreateBucket(Chunk.getChunkKey(location.getBlockX() >> 4, location.getBlockZ() >> 4));
+            (optimized ? bucket.optimized : bucket.unoptimized).add(villager);
+            tracked = new Tracked(bucket);
+            world.villagers.put(villager, tracked);
+        }
+
+        final Location scratch = new Location(null, 0, 0, 0);
+        // Spread the checks of all villagers evenly over the period
+        final WrappedTask chunkCheck = VillagerOptimizer.getFoliaLib().getImpl().runAtEntityTimer(villager,
+                () -> checkChunk(villager, scratch),
+                1L + Math.floorMod(villager.getEntityId(), (int) CHUNK_CHECK_TICKS), CHUNK_CHECK_TICKS);
+        if (chunkCheck == null) return;
+
+        synchronized (world) {
+            if (world.villagers.get(villager) == tracked) {
+                tracked.chunkCheck = chunkCheck;
+                return;
+            }
+        }
+        // Villager was unindexed while its check was being scheduled
+        chunkCheck.cancel();
+    }
+
+    public void unindex(@NotNull Villager villager) {
+        final WorldVillagers current = worlds.get(villager.getWorld().getUID());
+        Tracked tracked = null;
+        if (current != null) {
+            synchronized (current) {
+                tracked = current.remove(villager);
+            }
+        }
+        if (tracked == null) {
+            // The villager may have changed worlds since it was indexed
+            for (WorldVillagers world : worlds.values()) {
+                if (world == current) continue;
+                synchronized (world) {
+                    tracked = world.remove(villager);
+                }
+                if (tracked != null) break;
+            }
+        }
+        if (tracked != null && tracked.chunkCheck != null) {
+            tracked.chunkCheck.cancel();
+        }
+    }
+
+    /**
+     * Moves an indexed villager into the optimized or unoptimized set of its current bucket.
+     */
+    public void setOptimized(@NotNull Villager villager, boolean optimized) {
+        final WorldVillagers world = worlds.get(villager.getWorld().getUID());
+        if (world == null) return;
+        synchronized (world) {
+            final Tracked tracked = world.villagers.get(villager);
+            if (tracked == null) return;
+            if (optimized) {
+                if (tracked.bucket.unoptimized.remove(villager)) tracked.bucket.optimized.add(villager);
+            } else {
+                if (tracked.bucket.optimized.remove(villager)) tracked.bucket.unoptimized.add(villager);
+            }
+        }
+    }
+
+    /**
+     * Runs on the thread that owns the villager, so reading its location is safe.
+     */
+    private void checkChunk(@NotNull Villager villager, @NotNull Location scratch) {
+        if (!villager.isValid()) {
+            this.unindex(villager);
+            return;
+        }
+        this.move(villager, villager.getLocation(scratch));
+    }
+
+    private void move(@NotNull Villager villager, @NotNull Location to) {
+        final WorldVillagers world = worlds.get(to.getWorld().getUID());
+        // Villagers changing worlds are unindexed and indexed again by the remove and add events
+        if (world == null) return;
+        final long newChunkKey = Chunk.getChunkKey(to.getBlockX() >> 4, to.getBlockZ() >> 4);
+        synchronized (world) {
+            final Tracked tracked = world.villagers.get(villager);
+            if (tracked == null || tracked.bucket.chunkKey == newChunkKey) return;
+
+            final ChunkVillagers oldBucket = tracked.bucket;
+            final boolean optimized = oldBucket.optimized.remove(villager);
+            if (!optimized) oldBucket.unoptimized.remove(villager);
+            if (oldBucket.isEmpty()) world.chunks.remove(oldBucket.chunkKey);
+
+            final ChunkVillagers newBucket = world.getOrCreateBucket(newChunkKey);
+            (optimized ? newBucket.optimized : newBucket.unoptimized).add(villager);
+            tracked.bucket = newBucket;
+        }
+    }
+
+    private static boolean isOwnedByCurrentThread(@NotNull Villager villager) {
+        if (VillagerOptimizer.getFoliaLib().isFolia()) {
+            return Bukkit.isOwnedByCurrentRegion(villager);
+        } else {
+            return Bukkit.isPrimaryThread();
+        }
+    }
+
+    /**
+     * Only reads the sizes of the chunk's buckets, so it takes the same time no matter how many villagers there are.
+     *
+     * @return The amount of optimized villagers at index 0 and unoptimized villagers at index 1.
+     */
+    public @NotNull int[] count(@NotNull World world, int chunkX, int chunkZ) {
+        final WorldVillagers villagers = worlds.get(world.getUID());
+        if (villagers == null) return new int[2];
+        synchronized (villagers) {
+            final ChunkVillagers bucket = villagers.chunks.get(Chunk.getChunkKey(chunkX, chunkZ));
+            if (bucket == null) return new int[2];
+            return new int[]{ bucket.optimized.size(), bucket.unoptimized.size() };
+        }
+    }
+
+    /**
+     * @return The amount of optimized or unoptimized villagers of every chunk in the world, by packed chunk key.
+     *         Villagers that walked into another chunk during the last few ticks may still be counted for their previous chunk.
+     */
+    public @NotNull Long2IntOpenHashMap countsByChunk(@NotNull World world, boolean optimized) {
+        final Long2IntOpenHashMap counts = new Long2IntOpenHashMap();
+        final WorldVillagers villagers = worlds.get(world.getUID());
+        if (villagers == null) return counts;
+        synchronized (villagers) {
+            for (ChunkVillagers bucket : villagers.chunks.values()) {
+                final int count = optimized ? bucket.optimized.size() : bucket.unoptimized.size();
+                if (count > 0) counts.put(bucket.chunkKey, count);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Copies the indexed villagers of a chunk into the given collections.
+     */
+    public void collect(
+            @NotNull World world, int chunkX, int chunkZ,
+            @NotNull Collection<Villager> optimized, @NotNull Collection<Villager> unoptimized
+    ) {
+        final WorldVillagers villagers = worlds.get(world.getUID());
+        if (villagers == null) return;
+        synchronized (villagers) {
+            final ChunkVillagers bucket = villagers.chunks.get(Chunk.getChunkKey(chunkX, chunkZ));
+            if (bucket == null) return;
+            optimized.addAll(bucket.optimized);
+            unoptimized.addAll(bucket.unoptimized);
+        }
+    }
+
+    /**
+     * Copies all indexed villagers inside a box of the given radius around the center into the collection.
+     * Villagers owned by another Folia region are skipped, since neither this nor the caller may touch them.
+     */
+    public void collectNearby(@NotNull Location center, double radius, @NotNull Collection<Villager> villagers) {
+        final WorldVillagers world = worlds.get(center.getWorld().getUID());
+        if (world == null) return;
+
+        final int minChunkX = ((int) Math.floor(center.getX() - radius)) >> 4, maxChunkX = ((int) Math.floor(center.getX() + radius)) >> 4;
+        final int minChunkZ = ((int) Math.floor(center.getZ() - radius)) >> 4, maxChunkZ = ((int) Math.floor(center.getZ() + radius)) >> 4;
+
+        final List<Villager> candidates = new ArrayList<>();
+        synchronized (world) {
+            for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+                for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                    final ChunkVillagers bucket = world.chunks.get(Chunk.getChunkKey(chunkX, chunkZ));
+                    if (bucket == null) continue;
+                    candidates.addAll(bucket.optimized);
+                    candidates.addAll(bucket.unoptimized);
+                }
+            }
+        }
+
+        final Location location = new Location(null, 0, 0, 0);
+        for (Villager villager : candidates) {
+            if (!isOwnedByCurrentThread(villager)) continue;
+            villager.getLocation(location);
+            if (
+                    Math.abs(location.getX() - center.getX()) <= radius
+                    && Math.abs(location.getY() - center.getY()) <= radius
+                    && Math.abs(location.getZ() - center.getZ()) <= radius
+            ) {
+                villagers.add(villager);
+            }
+        }
+    }
+
+    /**
+     * @return The packed keys of all chunks in the world that currently have indexed villagers.
+     */
+    public @NotNull LongArrayList chunkKeys(@NotNull World world) {
+        final WorldVillagers villagers = worlds.get(world.getUID());
+        if (villagers == null) return new LongArrayList();
+        synchronized (villagers) {
+            return new LongArrayList(villagers.chunks.keySet());
+        }
+    }
+
+    public void clear() {
+        for (WorldVillagers world : worlds.values()) {
+            synchronized (world) {
+                for (Tracked tracked : world.villagers.values()) {
+                    if (tracked.chunkCheck != null) tracked.chunkCheck.cancel();
+                }
+                world.villagers.clear();
+                world.chunks.clear();
+            }
+        }
+        worlds.clear();
+    }
+
+    private @NotNull WorldVillagers getOrCreateWorld(@NotNull UUID worldUID) {
+        // World entries are never removed while enabled, so a lock on one can never go stale
+        return worlds.computeIfAbsent(worldUID, uid -> new WorldVillagers(weak_entity_references));
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onEntityAdd(EntityAddToWorldEvent event) {
+        if (event.getEntityType() == EntityType.VILLAGER) {
+            final Villager villager = (Villager) event.getEntity();
+            index(villager, villagerCache.getOrAdd(villager).isOptimized());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onEntityRemove(EntityRemoveFromWorldEvent event) {
+        if (event.getEntityType() == EntityType.VILLAGER) {
+            unindex((Villager) event.getEntity());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onEntityTeleport(EntityTeleportEvent event) {
+        if (
+                event.getEntityType() == EntityType.VILLAGER
+                && event.getTo() != null
+                && event.getTo().getWorld() == event.getFrom().getWorld()
+        ) {
+            move((Villager) event.getEntity(), event.getTo());
+        }
+    }
+}
@@ -12,6 +12,8 @@ import net.kyori.adventure.text.format.NamedTextColor;
 import net.kyori.adventure.text.format.TextDecoration;
 import net.kyori.adventure.text.logger.slf4j.ComponentLogger;
 import org.bstats.bukkit.Metrics;
+import org.bstats.charts.SimplePie;
+import org.bstats.charts.SingleLineChart;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
@@ -31,6 +33,7 @@ public final class VillagerOptimizer extends JavaPlugin {
 
     private static VillagerOptimizer instance;
     private static VillagerCache villagerCache;
+    private static PendingOptimizations pendingOptimizations;
     private static FoliaLib foliaLib;
     private static Map<String, LanguageCache> languageCacheMap;
     private static Config config;
@@ -82,6 +85,13 @@ public final class VillagerOptimizer extends JavaPlugin {
                 .append(Component.text("                         │").style(GenericUtil.STYLE)));
         reloadConfiguration();
 
+        bStats.addCustomChart(new SingleLineChart("cached_villagers", () ->
+                villagerCache == null ? 0 : (int) villagerCache.size()));
+        bStats.addCustomChart(new SimplePie("cache_hit_rate", () -> {
+            if (villagerCache == null) return "N/A";
+            return (int) Math.floor(villagerCache.stats().hitRate() * 10) * 10 + "%";
+        }));
+
         logger.info(Component.text("│              ")
                 .style(GenericUtil.STYLE).append(Component.text(" ✓  Done.").color(NamedTextColor.WHITE).decorate(TextDecoration.BOLD))
                 .append(Component.text("                                     │").style(GenericUtil.STYLE)));
@@ -94,12 +104,16 @@ public final class VillagerOptimizer extends JavaPlugin {
     public void onDisable() {
         VillagerOptimizerModule.modules.forEach(VillagerOptimizerModule::disable);
         VillagerOptimizerModule.modules.clear();
+        if (pendingOptimizations != null) {
+            pendingOptimizations.disable();
+            pendingOptimizations = null;
+        }
         if (foliaLib != null) {
             foliaLib.getImpl().cancelAllTasks();
             foliaLib = null;
         }
         if (villagerCache != null) {
-            villagerCache.clear();
+            villagerCache.disable();
             villagerCache = null;
         }
         if (audiences != null) {
@@ -125,6 +139,9 @@ public final class VillagerOptimizer extends JavaPlugin {
     public static @NotNull VillagerCache getCache() {
         return villagerCache;
     }
+    public static @NotNull PendingOptimizations getPendingOptimizations() {
+        return pendingOptimizations;
+    }
     public static @NotNull FoliaLib getFoliaLib() {
         return foliaLib;
     }
@@ -153,8 +170,12 @@ public final class VillagerOptimizer extends JavaPlugin {
     private void reloadConfiguration() {
         try {
             config = new Config();
-            if (villagerCache != null) villagerCache.clear();
-            villagerCache = new VillagerCache(config.cache_keep_time_seconds);
+            if (pendingOptimizations != null) pendingOptimizations.disable();
+            pendingOptimizations = new PendingOptimizations();
+            pendingOptimizations.enable();
+            if (villagerCache != null) villagerCache.disable();
+            villagerCache = new VillagerCache(config);
+            villagerCache.enable();
             VillagerOptimizerCommand.reloadCommands();
             VillagerOptimizerModule.reloadModules();
             config.saveConfig();
@@ -15,13 +15,12 @@ import net.kyori.adventure.text.format.NamedTextColor;
 import net.kyori.adventure.text.format.TextDecoration;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
-import org.bukkit.entity.Entity;
-import org.bukkit.entity.EntityType;
 import org.bukkit.entity.Player;
 import org.bukkit.entity.Villager;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class OptVillagersRadius implements VillagerOptimizerCommand {
@@ -94,9 +93,10 @@ public class OptVillagersRadius implements VillagerOptimizerCommand {
             int failCount = 0;
             final boolean player_has_cooldown_bypass = player.hasPermission(Permissions.Bypass.COMMAND_COOLDOWN.get());
 
-            for (Entity entity : player.getNearbyEntities(safeRadius, safeRadius, safeRadius)) {
-                if (!entity.getType().equals(EntityType.VILLAGER)) continue;
-                Villager villager = (Villager) entity;
+            List<Villager> nearbyVillagers = new ArrayList<>();
+            villagerCache.collectNearbyVillagers(player.getLocation(), safeRadius, nearbyVillagers);
+
+            for (Villager villager : nearbyVillagers) {
                 Villager.Profession profession = villager.getProfession();
                 if (profession.equals(Villager.Profession.NITWIT) || profession.equals(Villager.Profession.NONE)) continue;
 
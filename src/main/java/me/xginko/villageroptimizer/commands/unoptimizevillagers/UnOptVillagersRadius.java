@@ -14,13 +14,12 @@ import net.kyori.adventure.text.format.NamedTextColor;
 import net.kyori.adventure.text.format.TextDecoration;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
-import org.bukkit.entity.Entity;
-import org.bukkit.entity.EntityType;
 import org.bukkit.entity.Player;
 import org.bukkit.entity.Villager;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class UnOptVillagersRadius implements VillagerOptimizerCommand {
@@ -87,9 +86,10 @@ public class UnOptVillagersRadius implements VillagerOptimizerCommand {
             VillagerCache villagerCache = VillagerOptimizer.getCache();
             int successCount = 0;
 
-            for (Entity entity : player.getNearbyEntities(safeRadius, safeRadius, safeRadius)) {
-                if (!entity.getType().equals(EntityType.VILLAGER)) continue;
-                Villager villager = (Villager) entity;
+            List<Villager> nearbyVillagers = new ArrayList<>();
+            villagerCache.collectNearbyVillagers(player.getLocation(), safeRadius, nearbyVillagers);
+
+            for (Villager villager : nearbyVillagers) {
                 Villager.Profession profession = villager.getProfession();
                 if (profession.equals(Villager.Profession.NITWIT) || profession.equals(Villager.Profession.NONE)) continue;
 
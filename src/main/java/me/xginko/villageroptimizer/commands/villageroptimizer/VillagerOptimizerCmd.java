@@ -4,6 +4,7 @@ import me.xginko.villageroptimizer.commands.SubCommand;
 import me.xginko.villageroptimizer.commands.VillagerOptimizerCommand;
 import me.xginko.villageroptimizer.commands.villageroptimizer.subcommands.DisableSubCmd;
 import me.xginko.villageroptimizer.commands.villageroptimizer.subcommands.ReloadSubCmd;
+import me.xginko.villageroptimizer.commands.villageroptimizer.subcommands.StatsSubCmd;
 import me.xginko.villageroptimizer.commands.villageroptimizer.subcommands.VersionSubCmd;
 import me.xginko.villageroptimizer.enums.Permissions;
 import me.xginko.villageroptimizer.utils.GenericUtil;
@@ -24,7 +25,7 @@ public class VillagerOptimizerCmd implements VillagerOptimizerCommand {
     private final List<String> tabCompleter;
 
     public VillagerOptimizerCmd() {
-        subCommands = Arrays.asList(new ReloadSubCmd(), new VersionSubCmd(), new DisableSubCmd());
+        subCommands = Arrays.asList(new ReloadSubCmd(), new VersionSubCmd(), new DisableSubCmd(), new StatsSubCmd());
         tabCompleter = subCommands.stream().map(SubCommand::getLabel).collect(Collectors.toList());
     }
 
@@ -38,7 +38,8 @@ public class DisableSubCmd extends SubCommand {
         KyoriUtil.sendMessage(sender, Component.text("Disabling VillagerOptimizer...").color(NamedTextColor.RED));
         VillagerOptimizerModule.modules.forEach(VillagerOptimizerModule::disable);
         VillagerOptimizerModule.modules.clear();
-        VillagerOptimizer.getCache().cacheMap().clear();
+        VillagerOptimizer.getPendingOptimizations().disable();
+        VillagerOptimizer.getCache().disable();
         KyoriUtil.sendMessage(sender, Component.text("Disabled all plugin listeners and tasks.").color(NamedTextColor.GREEN));
         KyoriUtil.sendMessage(sender, Component.text("You can enable the plugin again using the reload command.").color(NamedTextColor.YELLOW));
     }
@@ -0,0 +1,70 @@
+package me.xginko.villageroptimizer.commands.villageroptimizer.subcommands;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import me.xginko.villageroptimizer.VillagerCache;
+import me.xginko.villageroptimizer.VillagerOptimizer;
+import me.xginko.villageroptimizer.commands.SubCommand;
+import me.xginko.villageroptimizer.enums.Permissions;
+import me.xginko.villageroptimizer.modules.VillagerChunkLimit;
+import me.xginko.villageroptimizer.modules.VillagerOptimizerModule;
+import me.xginko.villageroptimizer.utils.GenericUtil;
+import me.xginko.villageroptimizer.utils.KyoriUtil;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.TextComponent;
+import net.kyori.adventure.text.format.NamedTextColor;
+import org.bukkit.command.CommandSender;
+
+public class StatsSubCmd extends SubCommand {
+
+    @Override
+    public String getLabel() {
+        return "stats";
+    }
+
+    @Override
+    public TextComponent getDescription() {
+        return Component.text("Show villager cache statistics.").color(NamedTextColor.GRAY);
+    }
+
+    @Override
+    public TextComponent getSyntax() {
+        return Component.text("/villageroptimizer stats").color(GenericUtil.COLOR);
+    }
+
+    @Override
+    public void perform(CommandSender sender, String[] args) {
+        if (!sender.hasPermission(Permissions.Commands.STATS.get())) {
+            KyoriUtil.sendMessage(sender, VillagerOptimizer.getLang(sender).no_permission);
+            return;
+        }
+
+        final VillagerCache villagerCache = VillagerOptimizer.getCache();
+        final CacheStats stats = villagerCache.stats();
+
+        KyoriUtil.sendMessage(sender, Component.text("-----------------------------------------------------").color(NamedTextColor.GRAY));
+        KyoriUtil.sendMessage(sender, Component.text("VillagerOptimizer Cache Stats").color(GenericUtil.COLOR));
+        KyoriUtil.sendMessage(sender, Component.text("-----------------------------------------------------").color(NamedTextColor.GRAY));
+        sendStat(sender, "Cached villagers", Long.toString(villagerCache.size()));
+        sendStat(sender, "Hit rate", String.format("%.2f%%", stats.hitRate() * 100));
+        sendStat(sender, "Hits", Long.toString(stats.hitCount()));
+        sendStat(sender, "Misses", Long.toString(stats.missCount()));
+        sendStat(sender, "Created wrappers", Long.toString(villagerCache.createdWrappers()));
+        sendStat(sender, "Evictions", Long.toString(stats.evictionCount()));
+        sendStat(sender, "Pending optimization changes", Integer.toString(VillagerOptimizer.getPendingOptimizations().size()));
+        for (VillagerOptimizerModule module : VillagerOptimizerModule.modules) {
+            if (module instanceof VillagerChunkLimit && ((VillagerChunkLimit) module).lastCheckTicks() > 0) {
+                final VillagerChunkLimit chunkLimit = (VillagerChunkLimit) module;
+                sendStat(sender, "Last chunk limit check", chunkLimit.lastCheckedChunks() + " chunks in " +
+                        chunkLimit.lastCheckMillis() + "ms over " + chunkLimit.lastCheckTicks() + " ticks (" +
+                        chunkLimit.lastCheckedChunks() / chunkLimit.lastCheckTicks() + " chunks per tick)");
+            }
+        }
+        KyoriUtil.sendMessage(sender, Component.text("-----------------------------------------------------").color(NamedTextColor.GRAY));
+    }
+
+    private static void sendStat(CommandSender sender, String name, String value) {
+        KyoriUtil.sendMessage(sender, Component.text(name).color(NamedTextColor.GRAY)
+                .append(Component.text(": ").color(NamedTextColor.DARK_GRAY))
+                .append(Component.text(value).color(NamedTextColor.WHITE)));
+    }
+}
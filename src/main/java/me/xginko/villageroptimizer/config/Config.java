@@ -12,8 +12,11 @@ public class Config {
 
     private final @NotNull ConfigFile config;
     public final @NotNull Locale default_lang;
-    public final boolean auto_lang, support_other_plugins;
+    public final boolean auto_lang, support_other_plugins, snapshot_villager_data, index_villagers_by_chunk,
+            lifecycle_bound_cache, weak_entity_references, cache_by_entity_id,
+            compact_villager_data, migrate_avl_villagers;
     public final long cache_keep_time_seconds;
+    public final int max_optimization_changes_per_tick;
 
     public Config() throws Exception {
         // Load config.yml with ConfigMaster
@@ -29,9 +32,44 @@ public class Config {
                 "If set to true, will display messages based on client language");
         this.cache_keep_time_seconds = getInt("general.cache-keep-time-seconds", 30,
                 "The amount of time in seconds a villager will be kept in the plugin's cache.");
+        this.lifecycle_bound_cache = getBoolean("general.cache-villagers-while-loaded", false,
+                "Keeps villagers cached for exactly as long as they are loaded instead of using the keep time above.\n" +
+                "Villagers are cached once when they are added to the world and removed when they unload,\n" +
+                "which avoids rebuilding cache entries for villagers that never leave loaded chunks.");
+        this.cache_by_entity_id = getBoolean("general.cache-by-entity-id", false,
+                "Looks up cached villagers by their runtime entity id instead of their UUID, which is cheaper\n" +
+                "for listeners that fire very often. Implies cache-villagers-while-loaded.");
+        this.weak_entity_references = getBoolean("general.cache-weak-entity-references", false,
+                "Cached villagers only hold a weak reference to the villager entity and are dropped once it is no longer valid.\n" +
+                "Prevents the cache from keeping unloaded villagers in memory after large chunk unloads.");
+        this.snapshot_villager_data = getBoolean("general.snapshot-villager-data", false,
+                "Reads a villager's optimization data once when it gets cached and serves all further checks from memory.\n" +
+                "Changes are still written to the villager right away. Disable if other plugins edit VillagerOptimizer's data.");
+        this.index_villagers_by_chunk = getBoolean("general.index-villagers-by-chunk", false,
+                "Keeps track of which chunk every loaded villager is in, so chunk limits and radius commands\n" +
+                "only need to look at villagers instead of every entity in range.\n" +
+                "Recommended for servers with large trading halls next to mob farms.\n" +
+                "Always enabled while the villager-chunk-limit or tick-time-optimization is enabled, since they rely on the per-chunk counts.\n" +
+                "The index doesn't listen to villager movement, every villager checks its chunk every 5 ticks on its own thread instead.");
+        final boolean compact_requested = getBoolean("general.compact-villager-data", false,
+                "Stores all data of a villager in a single entry instead of four, so chunk saves and reads touch less data.\n" +
+                "Existing villagers are migrated automatically when they are loaded.\n" +
+                "Requires snapshot-villager-data and is turned off while it is disabled.");
+        if (compact_requested && !snapshot_villager_data) {
+            VillagerOptimizer.getPrefixedLogger().warn("general.compact-villager-data requires general.snapshot-villager-data " +
+                    "and was turned off. Villagers stored in the compact format are converted back to separate entries when loaded.");
+        }
+        this.compact_villager_data = compact_requested && snapshot_villager_data;
         this.support_other_plugins = getBoolean("general.support-avl-villagers", false,
                 "Enable if you have previously used AntiVillagerLag (https://www.spigotmc.org/resources/antivillagerlag.102949/).\n" +
                 "Tries to read pre-existing info like optimization state so players don't need to reoptimize their villagers.");
+        this.migrate_avl_villagers = getBoolean("general.migrate-avl-villagers", false,
+                "Only works if support-avl-villagers is enabled.\n" +
+                "Converts AntiVillagerLag data into VillagerOptimizer data the first time a villager is loaded\n" +
+                "and removes the AntiVillagerLag keys, so AntiVillagerLag data no longer has to be checked afterwards.");
+        this.max_optimization_changes_per_tick = getInt("general.max-optimization-changes-per-tick", 50,
+                "How many villagers can be optimized or unoptimized per tick (per region on Folia).\n" +
+                "Larger amounts, for example from the radius commands, are spread over the next ticks.");
     }
 
     public void saveConfig() {
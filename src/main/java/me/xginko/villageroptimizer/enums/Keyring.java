@@ -49,10 +49,11 @@ public final class Keyring {
 
     public enum VillagerOptimizer implements Keyed {
 
-        OPTIMIZATION_TYPE("optimization-type"),
+        OPTIMIZATION_TYPE("optimization-type"), // Returns BYTE -> OptimizationType#code(), STRING in older versions
         LAST_OPTIMIZE_SYSTIME_MILLIS("last-optimize"),
         LAST_LEVELUP_SYSTIME_MILLIS("last-levelup"),
-        LAST_RESTOCK_SYSTIME_MILLIS("last-restock");
+        LAST_RESTOCK_SYSTIME_MILLIS("last-restock"),
+        VILLAGER_DATA("villager-data"); // Returns BYTE_ARRAY -> compact record of all the above
 
         private final @NotNull NamespacedKey key;
 
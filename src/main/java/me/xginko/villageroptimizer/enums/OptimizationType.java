@@ -1,9 +1,52 @@
 package me.xginko.villageroptimizer.enums;
 
+import org.jetbrains.annotations.NotNull;
+
 public enum OptimizationType {
-    COMMAND,
-    NAMETAG,
-    WORKSTATION,
-    BLOCK,
-    NONE
+    // Codes are persisted on villagers, never change or reuse them
+    COMMAND((byte) 0),
+    NAMETAG((byte) 1),
+    WORKSTATION((byte) 2),
+    BLOCK((byte) 3),
+    NONE((byte) 4),
+    // Optimized while the server is lagging and reverted once it recovered
+    AUTOMATIC((byte) 5),
+    // Takes turns running its AI with the other throttled villagers of its chunk
+    THROTTLED((byte) 6),
+    // Locked into a small cell, like in trading halls
+    CONFINED((byte) 7);
+
+    private static final OptimizationType[] BY_CODE;
+    static {
+        int highestCode = 0;
+        for (OptimizationType type : values()) {
+            highestCode = Math.max(highestCode, type.code);
+        }
+        BY_CODE = new OptimizationType[highestCode + 1];
+        for (OptimizationType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final byte code;
+
+    OptimizationType(byte code) {
+        this.code = code;
+    }
+
+    /**
+     * @return The stable code this type is stored as.
+     */
+    public byte code() {
+        return code;
+    }
+
+    /**
+     * @param code The stored code of an OptimizationType.
+     * @return The matching OptimizationType or {@link #NONE} if the code is unknown.
+     */
+    public static @NotNull OptimizationType fromCode(byte code) {
+        if (code < 0 || code >= BY_CODE.length || BY_CODE[code] == null) return NONE;
+        return BY_CODE[code];
+    }
 }
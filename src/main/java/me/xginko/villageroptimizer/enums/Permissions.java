@@ -37,6 +37,8 @@ public final class Permissions {
                 "Permission to reload the plugin config", PermissionDefault.OP)),
         DISABLE(new Permission("villageroptimizer.cmd.disable",
                 "Permission to disable the plugin", PermissionDefault.OP)),
+        STATS(new Permission("villageroptimizer.cmd.stats",
+                "Permission to view plugin statistics", PermissionDefault.OP)),
         OPTIMIZE_RADIUS(new Permission("villageroptimizer.cmd.optimize",
                 "Permission to optimize villagers in a radius", PermissionDefault.TRUE)),
         UNOPTIMIZE_RADIUS(new Permission("villageroptimizer.cmd.unoptimize",
@@ -0,0 +1,267 @@
+package me.xginko.villageroptimizer.modules;
+
+import com.destroystokyo.paper.event.entity.EntityAddToWorldEvent;
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
+import com.tcoded.folialib.impl.ServerImplementation;
+import com.tcoded.folialib.wrapper.task.WrappedTask;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import me.xginko.villageroptimizer.VillagerCache;
+import me.xginko.villageroptimizer.VillagerOptimizer;
+import me.xginko.villageroptimizer.config.Config;
+import me.xginko.villageroptimizer.enums.OptimizationType;
+import me.xginko.villageroptimizer.events.VillagerOptimizeEvent;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.Villager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Villagers with the THROTTLED optimization type take turns running their AI. Every time slice, only a fraction of
+ * the throttled villagers of each chunk are aware, so they keep restocking and gossiping while the AI cost per chunk
+ * stays capped.
+ */
+public class ThrottledVillagerAI implements VillagerOptimizerModule, Listener {
+
+    private final ServerImplementation scheduler;
+    private final VillagerCache villagerCache;
+    private final Map<UUID, Long2ObjectOpenHashMap<Set<Villager>>> throttled_by_chunk;
+    private final Map<UUID, Long> tracked_chunks;
+    private WrappedTask time_slice_task;
+    private final double aware_fraction;
+    private final long time_slice_ticks;
+    private long slice;
+    private volatile boolean rotating;
+
+    public ThrottledVillagerAI() {
+        shouldEnable();
+        this.scheduler = VillagerOptimizer.getFoliaLib().getImpl();
+        this.villagerCache = VillagerOptimizer.getCache();
+        this.throttled_by_chunk = new HashMap<>();
+        this.tracked_chunks = new HashMap<>();
+        Config config = VillagerOptimizer.getConfiguration();
+        config.master().addComment(configPath() + ".enable",
+                "Lets throttled villagers take turns running their AI instead of disabling it completely.\n" +
+                "Villagers are throttled by naming them to one of the throttle names of the nametag optimization.\n" +
+                "If disabled, throttled villagers don't run their AI at all, like any other optimized villager.");
+        this.aware_fraction = Math.min(1.0, Math.max(0.0, config.getDouble(configPath() + ".aware-fraction-per-chunk", 0.25,
+                "The fraction of throttled villagers per chunk that run their AI at the same time.\n" +
+                "0.25 means a quarter of them, but always at least one villager per chunk.")));
+        this.time_slice_ticks = Math.max(1, config.getInt(configPath() + ".time-slice-in-ticks", 100,
+                "How long each group of villagers runs its AI before the next group takes over. 1 second = 20 ticks\n" +
+                "Villagers need some time to walk to their workstation, so very short slices are not recommended."));
+    }
+
+    @Override
+    public String configPath() {
+        return "throttled-villagers";
+    }
+
+    @Override
+    public void enable() {
+        VillagerOptimizer plugin = VillagerOptimizer.getInstance();
+        plugin.getServer().getPluginManager().registerEvents(this, plugin);
+        // Villagers that are already loaded don't call EntityAddToWorldEvent anymore
+        for (World world : plugin.getServer().getWorlds()) {
+            if (VillagerOptimizer.getFoliaLib().isFolia()) {
+                for (Chunk chunk : world.getLoadedChunks()) {
+                    scheduler.runAtLocation(new Location(world, chunk.getX() << 4, 0, chunk.getZ() << 4), trackChunk -> {
+                        for (Entity entity : chunk.getEntities()) {
+                            if (entity.getType() == EntityType.VILLAGER) this.trackIfThrottled((Villager) entity);
+                        }
+                    });
+                }
+            } else {
+                for (Villager villager : world.getEntitiesByClass(Villager.class)) {
+                    this.trackIfThrottled(villager);
+                }
+            }
+        }
+        this.time_slice_task = scheduler.runTimer(this::nextSlice, time_slice_ticks, time_slice_ticks);
+        rotating = true;
+    }
+
+    @Override
+    public void disable() {
+        rotating = false;
+        HandlerList.unregisterAll(this);
+        if (time_slice_task != null) time_slice_task.cancel();
+        final List<Villager> throttled = new ArrayList<>();
+        synchronized (throttled_by_chunk) {
+            for (Long2ObjectOpenHashMap<Set<Villager>> chunks : throttled_by_chunk.values()) {
+                for (Set<Villager> villagers : chunks.values()) {
+                    throttled.addAll(villagers);
+                }
+            }
+            throttled_by_chunk.clear();
+            tracked_chunks.clear();
+        }
+        // Without the rotation, throttled villagers don't run their AI at all, like any other optimized villager
+        for (Villager villager : throttled) {
+            if (isOwnedByCurrentThread(villager)) {
+                villager.setAware(false);
+            } else if (VillagerOptimizer.getInstance().isEnabled()) {
+                scheduler.runAtEntity(villager, disableAI -> villager.setAware(false));
+            }
+        }
+    }
+
+    /**
+     * @return true while throttled villagers take turns running their AI, so their awareness is managed by this module.
+     */
+    public boolean isRotating() {
+        return rotating;
+    }
+
+    private static boolean isOwnedByCurrentThread(@NotNull Villager villager) {
+        if (VillagerOptimizer.getFoliaLib().isFolia()) {
+            return Bukkit.isOwnedByCurrentRegion(villager);
+        } else {
+            return Bukkit.isPrimaryThread();
+        }
+    }
+
+    @Override
+    public boolean shouldEnable() {
+        return VillagerOptimizer.getConfiguration().getBoolean(configPath() + ".enable", false);
+    }
+
+    private void nextSlice() {
+        final long currentSlice = slice++;
+        final List<Runnable> cycles = new ArrayList<>();
+        synchronized (throttled_by_chunk) {
+            for (Map.Entry<UUID, Long2ObjectOpenHashMap<Set<Villager>>> worldEntry : throttled_by_chunk.entrySet()) {
+                final World world = VillagerOptimizer.getInstance().getServer().getWorld(worldEntry.getKey());
+                if (world == null) continue;
+                for (Long2ObjectMap.Entry<Set<Villager>> chunkEntry : worldEntry.getValue().long2ObjectEntrySet()) {
+                    final long chunkKey = chunkEntry.getLongKey();
+                    final List<Villager> villagers = new ArrayList<>(chunkEntry.getValue());
+                    if (VillagerOptimizer.getFoliaLib().isFolia()) {
+                        scheduler.runAtLocation(new Location(world, (int) chunkKey << 4, 0, (int) (chunkKey >> 32) << 4),
+                                cycle -> cycleChunk(chunkKey, villagers, currentSlice));
+                    } else {
+                        cycles.add(() -> cycleChunk(chunkKey, villagers, currentSlice));
+                    }
+                }
+            }
+        }
+        // Cycling may move villagers to other chunks, so it can't happen while iterating over them
+        cycles.forEach(Runnable::run);
+    }
+
+    /**
+     * Needs to be called on the thread that owns the chunk.
+     */
+    private void cycleChunk(long chunkKey, @NotNull List<Villager> villagers, long currentSlice) {
+        final List<Villager> throttled = new ArrayList<>(villagers.size());
+        for (Villager villager : villagers) {
+            if (!villager.isValid() || !isThrottled(villager)) {
+                this.untrack(villager);
+                continue;
+            }
+            final Location location = villager.getLocation();
+            if (Chunk.getChunkKey(location.getBlockX() >> 4, location.getBlockZ() >> 4) != chunkKey) {
+                // Walked into another chunk, takes part in that chunk's rotation from the next slice on
+                this.track(villager);
+            }
+            throttled.add(villager);
+        }
+        if (throttled.isEmpty()) return;
+
+        // Same order every slice, so the rotation reaches every villager
+        throttled.sort(Comparator.comparing(Entity::getUniqueId));
+        final int size = throttled.size();
+        final int aware = Math.max(1, (int) Math.ceil(size * aware_fraction));
+        final int first = (int) ((currentSlice * aware) % size);
+
+        for (int i = 0; i < size; i++) {
+            final Villager villager = throttled.get(i);
+            // Changing a trading villager's AI would break the trade
+            if (villager.isTrading()) continue;
+            final int offset = Math.floorMod(i - first, size);
+            villager.setAware(offset < aware);
+        }
+    }
+
+    private boolean isThrottled(@NotNull Villager villager) {
+        return villagerCache.getOrAdd(villager).getOptimizationType() == OptimizationType.THROTTLED;
+    }
+
+    private void trackIfThrottled(@NotNull Villager villager) {
+        if (villagerCache.getOrAdd(villager).getOptimizationType() == OptimizationType.THROTTLED) {
+            this.track(villager);
+        }
+    }
+
+    private void track(@NotNull Villager villager) {
+        final Location location = villager.getLocation();
+        final long chunkKey = Chunk.getChunkKey(location.getBlockX() >> 4, location.getBlockZ() >> 4);
+        synchronized (throttled_by_chunk) {
+            this.untrack(villager);
+            Long2ObjectOpenHashMap<Set<Villager>> chunks = throttled_by_chunk.get(location.getWorld().getUID());
+            if (chunks == null) {
+                chunks = new Long2ObjectOpenHashMap<>();
+                throttled_by_chunk.put(location.getWorld().getUID(), chunks);
+            }
+            Set<Villager> villagers = chunks.get(chunkKey);
+            if (villagers == null) {
+                villagers = new HashSet<>();
+                chunks.put(chunkKey, villagers);
+            }
+            villagers.add(villager);
+            tracked_chunks.put(villager.getUniqueId(), chunkKey);
+        }
+    }
+
+    private void untrack(@NotNull Villager villager) {
+        synchronized (throttled_by_chunk) {
+            final Long chunkKey = tracked_chunks.remove(villager.getUniqueId());
+            if (chunkKey == null) return;
+            final Long2ObjectOpenHashMap<Set<Villager>> chunks = throttled_by_chunk.get(villager.getWorld().getUID());
+            if (chunks == null) return;
+            final Set<Villager> villagers = chunks.get((long) chunkKey);
+            if (villagers == null) return;
+            villagers.remove(villager);
+            if (villagers.isEmpty()) chunks.remove((long) chunkKey);
+            if (chunks.isEmpty()) throttled_by_chunk.remove(villager.getWorld().getUID());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onOptimize(VillagerOptimizeEvent event) {
+        if (event.getOptimizationType() == OptimizationType.THROTTLED) {
+            this.track(event.getWrappedVillager().villager());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onEntityAdd(EntityAddToWorldEvent event) {
+        if (event.getEntityType() == EntityType.VILLAGER) {
+            this.trackIfThrottled((Villager) event.getEntity());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onEntityRemove(EntityRemoveFromWorldEvent event) {
+        if (event.getEntityType() == EntityType.VILLAGER) {
+            this.untrack((Villager) event.getEntity());
+        }
+    }
+}
@@ -2,11 +2,18 @@ package me.xginko.villageroptimizer.modules;
 
 import com.tcoded.folialib.impl.ServerImplementation;
 import com.tcoded.folialib.wrapper.task.WrappedTask;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import me.xginko.villageroptimizer.VillagerCache;
+import me.xginko.villageroptimizer.VillagerChunkIndex;
 import me.xginko.villageroptimizer.VillagerOptimizer;
 import me.xginko.villageroptimizer.config.Config;
+import me.xginko.villageroptimizer.utils.ChunkAreaLimiter;
 import me.xginko.villageroptimizer.utils.GenericUtil;
+import me.xginko.villageroptimizer.utils.RotatingLogFile;
+import org.bukkit.Bukkit;
 import org.bukkit.Chunk;
+import org.bukkit.Location;
 import org.bukkit.Server;
 import org.bukkit.World;
 import org.bukkit.entity.Entity;
@@ -17,21 +24,34 @@ import org.bukkit.event.EventPriority;
 import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
 import org.bukkit.event.entity.CreatureSpawnEvent;
+import org.bukkit.event.entity.EntityTeleportEvent;
 import org.bukkit.event.player.PlayerInteractEntityEvent;
+import org.bukkit.event.world.EntitiesLoadEvent;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class VillagerChunkLimit implements VillagerOptimizerModule, Listener {
 
     private final ServerImplementation scheduler;
     private final VillagerCache villagerCache;
-    private WrappedTask periodic_chunk_check;
-    private final List<Villager.Profession> non_optimized_removal_priority, optimized_removal_priority;
-    private final long check_period;
-    private final int non_optimized_max_per_chunk, optimized_max_per_chunk;
-    private final boolean log_enabled, skip_unloaded_entity_chunks;
+    private VillagerChunkIndex chunkIndex;
+    private WrappedTask periodic_chunk_check, check_continuation;
+    private Iterator<Chunk> check_cursor;
+    private RotatingLogFile detailed_log;
+    private final int[] non_optimized_removal_ranks, optimized_removal_ranks;
+    private final Map<UUID, LongOpenHashSet> dirty_chunks;
+    private final Set<CreatureSpawnEvent.SpawnReason> prevented_spawn_reasons;
+    private final long check_period, max_check_nanos_per_tick, detailed_log_max_bytes;
+    private long check_started_nanos, last_check_millis;
+    private int checked_chunks, check_ticks, last_checked_chunks, last_check_ticks;
+    private final int non_optimized_max_per_chunk, optimized_max_per_chunk,
+            area_size_in_chunks, non_optimized_max_per_area, optimized_max_per_area, detailed_log_max_files;
+    private final boolean log_enabled, log_check_stats, skip_unloaded_entity_chunks, only_check_changed_chunks, prevent_spawns_at_limit,
+            area_limit_enabled, detailed_log_enabled;
 
     protected VillagerChunkLimit() {
         shouldEnable();
@@ -44,12 +64,32 @@ public class VillagerChunkLimit implements VillagerOptimizerModule, Listener {
                 "Check all loaded chunks every X ticks. 1 second = 20 ticks\n" +
                 "A shorter delay in between checks is more efficient but is also more resource intense.\n" +
                 "A larger delay is less resource intense but could become inefficient.");
+        this.max_check_nanos_per_tick = TimeUnit.MICROSECONDS.toNanos(config.getInt(configPath() + ".max-check-time-per-tick-micros", 1000,
+                "How much time a check may use per tick in microseconds. 1000 microseconds = 1 millisecond\n" +
+                "If the time runs out, the check continues where it stopped on the next tick.\n" +
+                "Set to 0 to check all chunks in the same tick.\n" +
+                "Not used on Folia, where every chunk is checked by the region that owns it."));
+        this.log_check_stats = config.getBoolean(configPath() + ".log-check-stats", false,
+                "Logs how long each check took and how many chunks were checked per tick.");
+        this.only_check_changed_chunks = config.getBoolean(configPath() + ".only-check-changed-chunks", false,
+                "Instead of checking all loaded chunks, only check chunks where villagers were spawned, bred, cured,\n" +
+                "teleported to or loaded with their chunk since the last check. Skips the check if nothing changed.\n" +
+                "Recommended for servers with a lot of loaded chunks.");
+        this.dirty_chunks = new HashMap<>();
         this.skip_unloaded_entity_chunks = config.getBoolean(configPath() + ".skip-if-chunk-has-not-loaded-entities", true,
                 "Does not check chunks that don't have their entities loaded.");
-        this.log_enabled = config.getBoolean(configPath() + ".log-removals", true);
+        this.log_enabled = config.getBoolean(configPath() + ".log-removals", true,
+                "Logs one line per chunk with the amount of removed villagers by profession.");
+        this.detailed_log_enabled = config.getBoolean(configPath() + ".detailed-removal-log.enable", false,
+                "Writes every removed villager with its location to logs/villager-chunk-limit.log in the plugin folder.\n" +
+                "The file is written on a separate thread and does not show up in the server console.");
+        this.detailed_log_max_bytes = 1024L * config.getInt(configPath() + ".detailed-removal-log.max-file-size-in-kb", 1024,
+                "Once the log file is bigger than this, it is renamed and a new file is started.");
+        this.detailed_log_max_files = config.getInt(configPath() + ".detailed-removal-log.max-old-files", 5,
+                "How many old log files to keep before deleting the oldest one.");
         this.non_optimized_max_per_chunk = config.getInt(configPath() + ".unoptimized.max-per-chunk", 20,
                 "The maximum amount of unoptimized villagers per chunk.");
-        this.non_optimized_removal_priority = config.getList(configPath() + ".unoptimized.removal-priority", Arrays.asList(
+        this.non_optimized_removal_ranks = rankProfessions(config.getList(configPath() + ".unoptimized.removal-priority", Arrays.asList(
                         "NONE", "NITWIT", "SHEPHERD", "FISHERMAN", "BUTCHER", "CARTOGRAPHER", "LEATHERWORKER",
                         "FLETCHER", "MASON", "FARMER", "ARMORER", "TOOLSMITH", "WEAPONSMITH", "CLERIC", "LIBRARIAN"),
                         "Professions that are in the top of the list are going to be scheduled for removal first.\n" +
@@ -66,10 +106,29 @@ public class VillagerChunkLimit implements VillagerOptimizerModule, Listener {
                     }
                 })
                 .filter(Objects::nonNull)
-                .collect(Collectors.toList());
+                .collect(Collectors.toList()));
+        this.prevent_spawns_at_limit = config.getBoolean(configPath() + ".unoptimized.prevent-spawns-at-limit", false,
+                "Cancels villager spawns in chunks that already have the maximum amount of unoptimized villagers,\n" +
+                "instead of letting the villager spawn and removing it afterwards.");
+        this.prevented_spawn_reasons = config.getList(configPath() + ".unoptimized.prevented-spawn-reasons", Arrays.asList(
+                        "BREEDING", "CURED", "SPAWNER_EGG", "DISPENSE_EGG"),
+                        "Spawn reasons that are cancelled if prevent-spawns-at-limit is enabled.\n" +
+                        "Use enums from https://jd.papermc.io/paper/1.20/org/bukkit/event/entity/CreatureSpawnEvent.SpawnReason.html")
+                .stream()
+                .map(configuredReason -> {
+                    try {
+                        return CreatureSpawnEvent.SpawnReason.valueOf(configuredReason);
+                    } catch (IllegalArgumentException e) {
+                        warn("Spawn reason '" + configuredReason + "' not recognized. Make sure you're using the correct " +
+                             "spawn reason enums from https://jd.papermc.io/paper/1.20/org/bukkit/event/entity/CreatureSpawnEvent.SpawnReason.html.");
+                        return null;
+                    }
+                })
+                .filter(Objects::nonNull)
+                .collect(Collectors.toCollection(() -> EnumSet.noneOf(CreatureSpawnEvent.SpawnReason.class)));
         this.optimized_max_per_chunk = config.getInt(configPath() + ".optimized.max-per-chunk", 60,
                 "The maximum amount of optimized villagers per chunk.");
-        this.optimized_removal_priority = config.getList(configPath() + ".optimized.removal-priority", Arrays.asList(
+        this.optimized_removal_ranks = rankProfessions(config.getList(configPath() + ".optimized.removal-priority", Arrays.asList(
                 "NONE", "NITWIT", "SHEPHERD", "FISHERMAN", "BUTCHER", "CARTOGRAPHER", "LEATHERWORKER",
                 "FLETCHER", "MASON", "FARMER", "ARMORER", "TOOLSMITH", "WEAPONSMITH", "CLERIC", "LIBRARIAN"))
                 .stream()
@@ -84,7 +143,16 @@ public class VillagerChunkLimit implements VillagerOptimizerModule, Listener {
                     }
                 })
                 .filter(Objects::nonNull)
-                .collect(Collectors.toList());
+                .collect(Collectors.toList()));
+        this.area_limit_enabled = config.getBoolean(configPath() + ".area-limit.enable", false,
+                "Additionally limits villagers in every square area of chunks, so villagers can't be spread\n" +
+                "over chunk borders to get around the per chunk limits. Uses the removal priorities above.");
+        this.area_size_in_chunks = Math.max(1, config.getInt(configPath() + ".area-limit.area-size-in-chunks", 3,
+                "The width and length of the checked areas in chunks. 3 means every 3x3 chunk area is checked."));
+        this.non_optimized_max_per_area = config.getInt(configPath() + ".area-limit.unoptimized.max-per-area", 60,
+                "The maximum amount of unoptimized villagers per area.");
+        this.optimized_max_per_area = config.getInt(configPath() + ".area-limit.optimized.max-per-area", 180,
+                "The maximum amount of optimized villagers per area.");
     }
 
     @Override
@@ -94,19 +162,224 @@ public class VillagerChunkLimit implements VillagerOptimizerModule, Listener {
 
     @Override
     public void enable() {
+        if (detailed_log_enabled) {
+            this.detailed_log = new RotatingLogFile(new File(VillagerOptimizer.getInstance().getDataFolder(), "logs"),
+                    "villager-chunk-limit", detailed_log_max_bytes, detailed_log_max_files);
+        }
         final VillagerOptimizer plugin = VillagerOptimizer.getInstance();
         final Server server = plugin.getServer();
         server.getPluginManager().registerEvents(this, plugin);
+        // Keeps per-chunk villager counts, so chunks below the limits don't need to be scanned
+        if (villagerCache.chunkIndex() == null) {
+            info("Enabling general.index-villagers-by-chunk, since this module relies on per-chunk villager counts.");
+        }
+        this.chunkIndex = villagerCache.requireChunkIndex();
+
+        this.periodic_chunk_check = scheduler.runTimer(() -> this.startCheck(server), check_period, check_period);
+    }
+
+    /**
+     * Area limits are enforced right before every new check, so they never run while a check is still spread over ticks.
+     */
+    private void startCheck(@NotNull Server server) {
+        if (VillagerOptimizer.getFoliaLib().isFolia()) {
+            if (area_limit_enabled) this.enforceAreaLimits(server);
+            this.dispatchToRegions(server);
+            return;
+        }
+        if (check_cursor != null) return; // Previous check has not finished yet
+        if (area_limit_enabled) this.enforceAreaLimits(server);
+        this.check_cursor = only_check_changed_chunks ? changedChunks(server) : loadedChunks(server);
+        if (!check_cursor.hasNext()) {
+            this.check_cursor = null;
+            return;
+        }
+        this.check_started_nanos = System.nanoTime();
+        this.checked_chunks = 0;
+        this.check_ticks = 0;
+        if (!continueCheck()) {
+            this.check_continuation = scheduler.runTimer(() -> {
+                if (continueCheck()) check_continuation.cancel();
+            }, 1L, 1L);
+        }
+    }
+
+    /**
+     * Checks chunks until the time budget for this tick is used up.
+     *
+     * @return True if all chunks have been checked.
+     */
+    private boolean continueCheck() {
+        if (check_cursor == null) return true;
+        final long deadline = max_check_nanos_per_tick > 0 ? System.nanoTime() + max_check_nanos_per_tick : Long.MAX_VALUE;
+        this.check_ticks++;
+
+        while (check_cursor.hasNext()) {
+            final Chunk chunk = check_cursor.next();
+            // Chunks can unload while the check is spread over multiple ticks
+            if (chunk.isLoaded() && (!skip_unloaded_entity_chunks || GenericUtil.isEntitiesLoaded(chunk))) {
+                this.manageVillagerCount(chunk);
+            }
+            this.checked_chunks++;
+            if (System.nanoTime() >= deadline) return false;
+        }
+
+        this.check_cursor = null;
+        this.last_check_millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - check_started_nanos);
+        this.last_checked_chunks = checked_chunks;
+        this.last_check_ticks = check_ticks;
+        if (log_check_stats) {
+            info("Checked " + last_checked_chunks + " chunks in " + last_check_millis + "ms over " + last_check_ticks +
+                 " ticks (" + last_checked_chunks / last_check_ticks + " chunks per tick).");
+        }
+        return true;
+    }
+
+    /**
+     * @return A cursor over all loaded chunks. Each world's chunks are only collected once the cursor reaches it.
+     */
+    private @NotNull Iterator<Chunk> loadedChunks(@NotNull Server server) {
+        final Iterator<World> worlds = new ArrayList<>(server.getWorlds()).iterator();
+        return new Iterator<Chunk>() {
+            private Iterator<Chunk> chunks = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!chunks.hasNext() && worlds.hasNext()) {
+                    chunks = Arrays.asList(worlds.next().getLoadedChunks()).iterator();
+                }
+                return chunks.hasNext();
+            }
+
+            @Override
+            public Chunk next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return chunks.next();
+            }
+        };
+    }
 
-        this.periodic_chunk_check = scheduler.runTimer(() -> {
+    /**
+     * On Folia, hands every chunk to the region that owns it, so all regions check their chunks in parallel
+     * on their own threads. Chunks are taken from the chunk index, so only chunks with villagers are checked.
+     */
+    private void dispatchToRegions(@NotNull Server server) {
+        final long started_nanos = System.nanoTime();
+        int dispatched_chunks = 0;
+
+        if (only_check_changed_chunks) {
+            for (Map.Entry<UUID, LongOpenHashSet> entry : takeChangedChunks().entrySet()) {
+                final World world = server.getWorld(entry.getKey());
+                if (world == null) continue;
+                for (LongIterator iterator = entry.getValue().iterator(); iterator.hasNext();) {
+                    this.checkOnOwningRegion(world, iterator.nextLong());
+                    dispatched_chunks++;
+                }
+            }
+        } else {
             for (World world : server.getWorlds()) {
-                for (Chunk chunk : world.getLoadedChunks()) {
-                    if (!skip_unloaded_entity_chunks || GenericUtil.isEntitiesLoaded(chunk)) {
-                        this.manageVillagerCount(chunk);
-                    }
+                for (LongIterator iterator = chunkIndex.chunkKeys(world).iterator(); iterator.hasNext();) {
+                    this.checkOnOwningRegion(world, iterator.nextLong());
+                    dispatched_chunks++;
                 }
             }
-        }, check_period, check_period);
+        }
+
+        if (dispatched_chunks == 0) return;
+        this.last_check_millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started_nanos);
+        this.last_checked_chunks = dispatched_chunks;
+        this.last_check_ticks = 1;
+        if (log_check_stats) {
+            info("Handed " + dispatched_chunks + " chunks to their regions for checking in " + last_check_millis + "ms.");
+        }
+    }
+
+    /**
+     * Removes villagers from the fullest chunks of every area that has more villagers than allowed.
+     * Counts are taken from the chunk index, so no chunk has to be scanned to find those areas.
+     */
+    private void enforceAreaLimits(@NotNull Server server) {
+        for (World world : server.getWorlds()) {
+            ChunkAreaLimiter.enforce(chunkIndex.countsByChunk(world, false), area_size_in_chunks, non_optimized_max_per_area,
+                    (chunkX, chunkZ, amount) -> this.removeFromChunk(world, chunkX, chunkZ, amount, false));
+            ChunkAreaLimiter.enforce(chunkIndex.countsByChunk(world, true), area_size_in_chunks, optimized_max_per_area,
+                    (chunkX, chunkZ, amount) -> this.removeFromChunk(world, chunkX, chunkZ, amount, true));
+        }
+    }
+
+    private void removeFromChunk(@NotNull World world, int chunkX, int chunkZ, int amount, boolean optimized) {
+        scheduler.runAtLocation(new Location(world, chunkX << 4, 0, chunkZ << 4), remove -> {
+            if (!world.isChunkLoaded(chunkX, chunkZ)) return;
+            final List<Villager> optimized_villagers = new ArrayList<>();
+            final List<Villager> not_optimized_villagers = new ArrayList<>();
+            villagerCache.collectVillagers(world.getChunkAt(chunkX, chunkZ), optimized_villagers, not_optimized_villagers);
+            if (optimized) {
+                this.removeNow(world, chunkX, chunkZ, Collections.emptyList(), lowestRanked(optimized_villagers, amount, optimized_removal_ranks));
+            } else {
+                this.removeNow(world, chunkX, chunkZ, lowestRanked(not_optimized_villagers, amount, non_optimized_removal_ranks), Collections.emptyList());
+            }
+        });
+    }
+
+    private void checkOnOwningRegion(@NotNull World world, long chunkKey) {
+        final int chunkX = (int) chunkKey, chunkZ = (int) (chunkKey >> 32);
+        scheduler.runAtLocation(new Location(world, chunkX << 4, 0, chunkZ << 4), check -> {
+            if (!world.isChunkLoaded(chunkX, chunkZ)) return;
+            final Chunk chunk = world.getChunkAt(chunkX, chunkZ);
+            if (!skip_unloaded_entity_chunks || GenericUtil.isEntitiesLoaded(chunk)) {
+                this.manageVillagerCount(chunk);
+            }
+        });
+    }
+
+    private @NotNull Map<UUID, LongOpenHashSet> takeChangedChunks() {
+        synchronized (dirty_chunks) {
+            if (dirty_chunks.isEmpty()) return Collections.emptyMap();
+            final Map<UUID, LongOpenHashSet> changed_chunks = new HashMap<>(dirty_chunks);
+            dirty_chunks.clear();
+            return changed_chunks;
+        }
+    }
+
+    /**
+     * @return A cursor over all loaded chunks that were marked as changed since the last check.
+     */
+    private @NotNull Iterator<Chunk> changedChunks(@NotNull Server server) {
+        final List<Chunk> chunks = new ArrayList<>();
+        for (Map.Entry<UUID, LongOpenHashSet> entry : takeChangedChunks().entrySet()) {
+            final World world = server.getWorld(entry.getKey());
+            if (world == null) continue;
+            for (LongIterator iterator = entry.getValue().iterator(); iterator.hasNext();) {
+                final long chunkKey = iterator.nextLong();
+                final int chunkX = (int) chunkKey, chunkZ = (int) (chunkKey >> 32);
+                if (world.isChunkLoaded(chunkX, chunkZ)) {
+                    chunks.add(world.getChunkAt(chunkX, chunkZ));
+                }
+            }
+        }
+        return chunks.iterator();
+    }
+
+    public long lastCheckMillis() {
+        return last_check_millis;
+    }
+
+    public int lastCheckedChunks() {
+        return last_checked_chunks;
+    }
+
+    public int lastCheckTicks() {
+        return last_check_ticks;
+    }
+
+    private void markChanged(@NotNull World world, int chunkX, int chunkZ) {
+        synchronized (dirty_chunks) {
+            dirty_chunks.computeIfAbsent(world.getUID(), uid -> new LongOpenHashSet()).add(Chunk.getChunkKey(chunkX, chunkZ));
+        }
+    }
+
+    private void markChanged(@NotNull Location location) {
+        this.markChanged(location.getWorld(), location.getBlockX() >> 4, location.getBlockZ() >> 4);
     }
 
     @Override
@@ -118,12 +391,50 @@ public class VillagerChunkLimit implements VillagerOptimizerModule, Listener {
     public void disable() {
         HandlerList.unregisterAll(this);
         if (periodic_chunk_check != null) periodic_chunk_check.cancel();
+        if (check_continuation != null) check_continuation.cancel();
+        this.check_cursor = null;
+        if (detailed_log != null) {
+            detailed_log.close();
+            this.detailed_log = null;
+        }
+        synchronized (dirty_chunks) {
+            dirty_chunks.clear();
+        }
     }
 
     @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
     private void onCreatureSpawn(CreatureSpawnEvent event) {
-        if (event.getEntityType() == EntityType.VILLAGER) {
-            this.manageVillagerCount(event.getEntity().getChunk());
+        if (event.getEntityType() != EntityType.VILLAGER) return;
+
+        if (prevent_spawns_at_limit && prevented_spawn_reasons.contains(event.getSpawnReason())) {
+            // New villagers are always unoptimized, so don't create one that would be removed right after
+            final Location location = event.getLocation();
+            if (chunkIndex.count(location.getWorld(), location.getBlockX() >> 4, location.getBlockZ() >> 4)[1] >= non_optimized_max_per_chunk) {
+                event.setCancelled(true);
+                return;
+            }
+        }
+
+        this.manageVillagerCount(event.getEntity().getChunk());
+        // Covers breeding and curing. The new villager isn't counted yet, so check again with the next run
+        if (only_check_changed_chunks) this.markChanged(event.getLocation());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onTeleport(EntityTeleportEvent event) {
+        if (only_check_changed_chunks && event.getEntityType() == EntityType.VILLAGER && event.getTo() != null) {
+            this.markChanged(event.getTo());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onEntitiesLoad(EntitiesLoadEvent event) {
+        if (!only_check_changed_chunks) return;
+        for (Entity entity : event.getEntities()) {
+            if (entity.getType() == EntityType.VILLAGER) {
+                this.markChanged(event.getWorld(), event.getChunk().getX(), event.getChunk().getZ());
+                return;
+            }
         }
     }
 
@@ -135,62 +446,162 @@ public class VillagerChunkLimit implements VillagerOptimizerModule, Listener {
     }
 
     private void manageVillagerCount(@NotNull Chunk chunk) {
+        // Only look at the villagers if there are too many of them
+        final int[] counts = chunkIndex.count(chunk.getWorld(), chunk.getX(), chunk.getZ());
+        if (counts[0] <= optimized_max_per_chunk && counts[1] <= non_optimized_max_per_chunk) return;
+
         // Collect all optimized and unoptimized villagers in that chunk
         List<Villager> optimized_villagers = new ArrayList<>();
         List<Villager> not_optimized_villagers = new ArrayList<>();
 
-        for (Entity entity : chunk.getEntities()) {
-            if (entity.getType().equals(EntityType.VILLAGER)) {
-                Villager villager = (Villager) entity;
-                if (villagerCache.getOrAdd(villager).isOptimized()) {
-                    optimized_villagers.add(villager);
-                } else {
-                    not_optimized_villagers.add(villager);
-                }
-            }
-        }
+        villagerCache.collectVillagers(chunk, optimized_villagers, not_optimized_villagers);
 
         // Check if there are more unoptimized villagers in that chunk than allowed
         final int not_optimized_villagers_too_many = not_optimized_villagers.size() - non_optimized_max_per_chunk;
-        if (not_optimized_villagers_too_many > 0) {
-            // Sort villagers by profession priority
-            not_optimized_villagers.sort(Comparator.comparingInt(villager -> {
-                final Villager.Profession profession = villager.getProfession();
-                return non_optimized_removal_priority.contains(profession) ? non_optimized_removal_priority.indexOf(profession) : Integer.MAX_VALUE;
-            }));
-            // Remove prioritized villagers that are too many
-            for (int i = 0; i < not_optimized_villagers_too_many; i++) {
-                Villager villager = not_optimized_villagers.get(i);
+        // Select prioritized villagers that are too many
+        final List<Villager> not_optimized_removals = not_optimized_villagers_too_many > 0 ?
+                lowestRanked(not_optimized_villagers, not_optimized_villagers_too_many, non_optimized_removal_ranks) :
+                Collections.emptyList();
+
+        // Check if there are more optimized villagers in that chunk than allowed
+        final int optimized_villagers_too_many = optimized_villagers.size() - optimized_max_per_chunk;
+        // Select prioritized villagers that are too many
+        final List<Villager> optimized_removals = optimized_villagers_too_many > 0 ?
+                lowestRanked(optimized_villagers, optimized_villagers_too_many, optimized_removal_ranks) :
+                Collections.emptyList();
+
+        if (not_optimized_removals.isEmpty() && optimized_removals.isEmpty()) return;
+
+        // Remove all of them with a single task for the chunk
+        final World world = chunk.getWorld();
+        final int chunkX = chunk.getX(), chunkZ = chunk.getZ();
+        scheduler.runAtLocation(new Location(world, chunkX << 4, 0, chunkZ << 4), remove ->
+                this.removeNow(world, chunkX, chunkZ, not_optimized_removals, optimized_removals));
+    }
+
+    /**
+     * Needs to be called on the thread that owns the chunk.
+     */
+    private void removeNow(
+            @NotNull World world, int chunkX, int chunkZ,
+            @NotNull List<Villager> not_optimized_removals, @NotNull List<Villager> optimized_removals
+    ) {
+        final Map<Villager.Profession, Integer> removed_not_optimized = this.removeAll(not_optimized_removals, "unoptimized");
+        final Map<Villager.Profession, Integer> removed_optimized = this.removeAll(optimized_removals, "optimized");
+
+        if (log_enabled) {
+            final String chunk = "[" + world.getName() + "] chunk x=" + chunkX + ", z=" + chunkZ;
+            if (!removed_not_optimized.isEmpty()) info(summarize(removed_not_optimized, "unoptimized", chunk));
+            if (!removed_optimized.isEmpty()) info(summarize(removed_optimized, "optimized", chunk));
+        }
+    }
+
+    private @NotNull Map<Villager.Profession, Integer> removeAll(@NotNull List<Villager> villagers, @NotNull String state) {
+        final Map<Villager.Profession, Integer> removed = new EnumMap<>(Villager.Profession.class);
+        for (Villager villager : villagers) {
+            if (!villager.isValid()) continue; // Died or was removed since it was selected
+
+            if (VillagerOptimizer.getFoliaLib().isFolia() && !Bukkit.isOwnedByCurrentRegion(villager)) {
+                // Walked into a chunk of another region since it was selected. Its data can only be read
+                // on that region's thread, so it is logged from there and not part of this chunk's summary.
                 scheduler.runAtEntity(villager, kill -> {
+                    this.logDetailed(villager, state);
                     villager.remove();
                     if (log_enabled) {
-                        info("Removed unoptimized villager with profession '" + villager.getProfession() + "' at " +
+                        info("Removed " + state + " villager with profession '" + villager.getProfession() + "' at " +
                              GenericUtil.formatLocation(villager.getLocation()));
                     }
                 });
+                continue;
             }
+
+            this.logDetailed(villager, state);
+            villager.remove();
+            removed.merge(villager.getProfession(), 1, Integer::sum);
         }
+        return removed;
+    }
 
-        // Check if there are more optimized villagers in that chunk than allowed
-        final int optimized_villagers_too_many = optimized_villagers.size() - optimized_max_per_chunk;
-        if (optimized_villagers_too_many > 0) {
-            // Sort villagers by profession priority
-            optimized_villagers.sort(Comparator.comparingInt(villager -> {
-                final Villager.Profession profession = villager.getProfession();
-                return optimized_removal_priority.contains(profession) ? optimized_removal_priority.indexOf(profession) : Integer.MAX_VALUE;
-            }));
-            // Remove prioritized villagers that are too many
-            for (int i = 0; i < optimized_villagers_too_many; i++) {
-                Villager villager = optimized_villagers.get(i);
-                scheduler.runAtEntity(villager, kill -> {
-                    villager.remove();
+    /**
+     * Needs to be called on the villager's thread. Only the line is built on the log's thread.
+     */
+    private void logDetailed(@NotNull Villager villager, @NotNull String state) {
+        if (detailed_log == null) return;
+        final Location location = villager.getLocation();
+        final Villager.Profession profession = villager.getProfession();
+        final UUID uuid = villager.getUniqueId();
+        detailed_log.log(() -> "Removed " + state + " villager " + uuid + " with profession '" + profession +
+                "' at " + GenericUtil.formatLocation(location));
+    }
 
-                    if (log_enabled) {
-                        info("Removed optimized villager with profession '" + villager.getProfession() + "' at " +
-                             GenericUtil.formatLocation(villager.getLocation()));
-                    }
-                });
+    private static @NotNull String summarize(
+            @NotNull Map<Villager.Profession, Integer> removed, @NotNull String state, @NotNull String chunk
+    ) {
+        final StringJoiner professions = new StringJoiner(", ");
+        int total = 0;
+        for (Map.Entry<Villager.Profession, Integer> entry : removed.entrySet()) {
+            professions.add(entry.getKey() + " x" + entry.getValue());
+            total += entry.getValue();
+        }
+        return "Removed " + total + " " + state + " villagers in " + chunk + " (" + professions + ")";
+    }
+
+    /**
+     * @param removal_priority Professions in order of removal priority.
+     * @return The removal rank of every profession, indexed by ordinal. Professions not in the list rank last.
+     */
+    private static @NotNull int[] rankProfessions(@NotNull List<Villager.Profession> removal_priority) {
+        final int[] ranks = new int[Villager.Profession.values().length];
+        Arrays.fill(ranks, Integer.MAX_VALUE);
+        for (int i = removal_priority.size() - 1; i >= 0; i--) {
+            ranks[removal_priority.get(i).ordinal()] = i; // Backwards so the first entry wins on duplicates
+        }
+        return ranks;
+    }
+
+    /**
+     * Selects the villagers with the lowest removal rank without sorting all of them.
+     * Villagers with the same rank are selected in the order they were collected in.
+     *
+     * @return The k villagers that should be removed first.
+     */
+    private static @NotNull List<Villager> lowestRanked(@NotNull List<Villager> villagers, int k, @NotNull int[] ranks) {
+        if (k >= villagers.size()) return villagers;
+
+        // Rank in the upper bits, index in the lower bits, so every key is unique and ties keep their order
+        final long[] keys = new long[villagers.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = (long) ranks[villagers.get(i).getProfession().ordinal()] << 32 | i;
+        }
+        selectSmallest(keys, k);
+
+        final List<Villager> selected = new ArrayList<>(k);
+        for (int i = 0; i < k; i++) {
+            selected.add(villagers.get((int) keys[i]));
+        }
+        return selected;
+    }
+
+    /**
+     * Quickselect over unique keys, afterwards the first k keys are the k smallest in no particular order.
+     */
+    static void selectSmallest(@NotNull long[] keys, int k) {
+        int low = 0, high = keys.length - 1;
+        while (low < high) {
+            final long pivot = keys[(low + high) >>> 1];
+            int i = low, j = high;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if (i <= j) {
+                    final long swap = keys[i];
+                    keys[i++] = keys[j];
+                    keys[j--] = swap;
+                }
             }
+            if (k - 1 <= j) high = j;
+            else if (k - 1 >= i) low = i;
+            else break;
         }
     }
-}
\ No newline at end of file
+}
@@ -3,7 +3,9 @@ package me.xginko.villageroptimizer.modules;
 import me.xginko.villageroptimizer.VillagerOptimizer;
 import me.xginko.villageroptimizer.modules.gameplay.*;
 import me.xginko.villageroptimizer.modules.optimization.OptimizeByBlock;
+import me.xginko.villageroptimizer.modules.optimization.OptimizeByConfinement;
 import me.xginko.villageroptimizer.modules.optimization.OptimizeByNametag;
+import me.xginko.villageroptimizer.modules.optimization.OptimizeByTickTime;
 import me.xginko.villageroptimizer.modules.optimization.OptimizeByWorkstation;
 
 import java.util.HashSet;
@@ -21,14 +23,19 @@ public interface VillagerOptimizerModule {
         modules.forEach(VillagerOptimizerModule::disable);
         modules.clear();
 
+        // Leveling up needs to know whether throttled villagers take turns running their AI
+        final ThrottledVillagerAI throttledVillagerAI = new ThrottledVillagerAI();
+
         modules.add(new OptimizeByNametag());
         modules.add(new OptimizeByBlock());
         modules.add(new OptimizeByWorkstation());
+        modules.add(new OptimizeByTickTime());
+        modules.add(new OptimizeByConfinement());
 
         modules.add(new EnableLeashingVillagers());
         modules.add(new FixOptimisationAfterCure());
         modules.add(new RestockOptimizedTrades());
-        modules.add(new LevelOptimizedProfession());
+        modules.add(new LevelOptimizedProfession(throttledVillagerAI));
         modules.add(new VisuallyHighlightOptimized());
         modules.add(new MakeVillagersSpawnAdult());
         modules.add(new PreventUnoptimizedTrading());
@@ -37,6 +44,7 @@ public interface VillagerOptimizerModule {
         modules.add(new UnoptimizeOnJobLoose());
 
         modules.add(new VillagerChunkLimit());
+        modules.add(throttledVillagerAI);
 
         modules.forEach(module -> {
             if (module.shouldEnable()) module.enable();
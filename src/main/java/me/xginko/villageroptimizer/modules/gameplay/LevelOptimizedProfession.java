@@ -4,6 +4,8 @@ import com.tcoded.folialib.impl.ServerImplementation;
 import me.xginko.villageroptimizer.VillagerOptimizer;
 import me.xginko.villageroptimizer.VillagerCache;
 import me.xginko.villageroptimizer.config.Config;
+import me.xginko.villageroptimizer.enums.OptimizationType;
+import me.xginko.villageroptimizer.modules.ThrottledVillagerAI;
 import me.xginko.villageroptimizer.wrapper.WrappedVillager;
 import me.xginko.villageroptimizer.modules.VillagerOptimizerModule;
 import me.xginko.villageroptimizer.utils.GenericUtil;
@@ -27,13 +29,15 @@ public class LevelOptimizedProfession implements VillagerOptimizerModule, Listen
 
     private final ServerImplementation scheduler;
     private final VillagerCache villagerCache;
+    private final ThrottledVillagerAI throttledVillagerAI;
     private final boolean notify_player;
     private final long cooldown_millis;
 
-    public LevelOptimizedProfession() {
+    public LevelOptimizedProfession(ThrottledVillagerAI throttledVillagerAI) {
         shouldEnable();
         this.scheduler = VillagerOptimizer.getFoliaLib().getImpl();
         this.villagerCache = VillagerOptimizer.getCache();
+        this.throttledVillagerAI = throttledVillagerAI;
         Config config = VillagerOptimizer.getConfiguration();
         config.master().addComment(configPath(),
                 "This is needed to allow optimized villagers to level up.\n" +
@@ -84,7 +88,10 @@ public class LevelOptimizedProfession implements VillagerOptimizerModule, Listen
                     villager.addPotionEffect(new PotionEffect(PotionEffectType.SLOW, 120, 120, false, false));
                     villager.setAware(true);
                     scheduler.runAtEntityLater(villager, disableAI -> {
-                        villager.setAware(false);
+                        // Throttled villagers become aware again on their turn of the rotation
+                        if (!throttledVillagerAI.isRotating() || wVillager.getOptimizationType() != OptimizationType.THROTTLED) {
+                            villager.setAware(false);
+                        }
                         wVillager.saveLastLevelUp();
                     }, 5, TimeUnit.SECONDS);
                 });
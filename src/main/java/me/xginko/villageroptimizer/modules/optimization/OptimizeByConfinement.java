@@ -0,0 +1,361 @@
+package me.xginko.villageroptimizer.modules.optimization;
+
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
+import com.tcoded.folialib.impl.ServerImplementation;
+import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import me.xginko.villageroptimizer.VillagerCache;
+import me.xginko.villageroptimizer.VillagerOptimizer;
+import me.xginko.villageroptimizer.config.Config;
+import me.xginko.villageroptimizer.enums.OptimizationType;
+import me.xginko.villageroptimizer.events.VillagerOptimizeEvent;
+import me.xginko.villageroptimizer.events.VillagerUnoptimizeEvent;
+import me.xginko.villageroptimizer.modules.VillagerOptimizerModule;
+import me.xginko.villageroptimizer.utils.GenericUtil;
+import me.xginko.villageroptimizer.utils.SectionOccupancyCache;
+import me.xginko.villageroptimizer.wrapper.WrappedVillager;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.data.Openable;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.Villager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.Action;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockFadeEvent;
+import org.bukkit.event.block.BlockFormEvent;
+import org.bukkit.event.block.BlockFromToEvent;
+import org.bukkit.event.block.BlockPistonEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.block.BlockRedstoneEvent;
+import org.bukkit.event.block.BlockSpreadEvent;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.player.PlayerInteractEntityEvent;
+import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.EntitiesLoadEvent;
+import org.bukkit.event.world.StructureGrowEvent;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+public class OptimizeByConfinement implements VillagerOptimizerModule, Listener {
+
+    private static final int[][] DIRECTIONS = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+
+    private final ServerImplementation scheduler;
+    private final VillagerCache villagerCache;
+    private final SectionOccupancyCache occupancy;
+    private final Set<UUID> observed_villagers;
+    private final long observe_ticks;
+    private final double max_movement_squared;
+    private final int max_cell_size;
+    private final boolean only_employed, check_on_chunk_load, check_on_interact, unoptimize_when_freed, log_enabled;
+
+    public OptimizeByConfinement() {
+        shouldEnable();
+        this.scheduler = VillagerOptimizer.getFoliaLib().getImpl();
+        this.villagerCache = VillagerOptimizer.getCache();
+        this.observed_villagers = new HashSet<>();
+        Config config = VillagerOptimizer.getConfiguration();
+        config.master().addComment(configPath() + ".enable",
+                "When enabled, villagers that are locked into small cells, like in most trading halls, are optimized automatically.\n" +
+                "A villager counts as locked in if it can't walk out of its cell and didn't move for a while.");
+        this.max_cell_size = Math.max(1, config.getInt(configPath() + ".max-cell-size-in-blocks", 2,
+                "The largest amount of blocks a villager can walk on for it to still count as locked in.\n" +
+                "1 only matches 1x1 cells, 2 also matches 1x2 cells and so on."));
+        this.observe_ticks = Math.max(1, config.getInt(configPath() + ".observe-duration-ticks", 200,
+                "How long a villager is watched before it is optimized. 1 second = 20 ticks"));
+        final double max_movement = config.getDouble(configPath() + ".max-movement-in-blocks", 1.5,
+                "Villagers that moved further than this while being watched are not optimized.");
+        this.max_movement_squared = max_movement * max_movement;
+        this.only_employed = config.getBoolean(configPath() + ".only-employed-villagers", true,
+                "Only optimize villagers that have a profession. Unemployed villagers and nitwits are ignored.");
+        this.check_on_chunk_load = config.getBoolean(configPath() + ".check-on-chunk-load", true,
+                "Checks villagers when their chunk is loaded.");
+        this.check_on_interact = config.getBoolean(configPath() + ".check-on-interact", true,
+                "Checks villagers when a player interacts with them.");
+        this.unoptimize_when_freed = config.getBoolean(configPath() + ".unoptimize-when-freed", true,
+                "Unoptimizes villagers that were optimized this way when a player interacts with them\n" +
+                "and they are not locked in anymore.");
+        this.occupancy = new SectionOccupancyCache(TimeUnit.SECONDS.toMillis(Math.max(1,
+                config.getInt(configPath() + ".block-cache-seconds", 30,
+                "How long the blocks around villagers are remembered before they are read again.\n" +
+                "Most block changes are picked up right away, this catches changes made by other plugins or block updates."))));
+        this.log_enabled = config.getBoolean(configPath() + ".log", false);
+    }
+
+    @Override
+    public String configPath() {
+        return "optimization-methods.confinement-optimization";
+    }
+
+    @Override
+    public void enable() {
+        VillagerOptimizer plugin = VillagerOptimizer.getInstance();
+        plugin.getServer().getPluginManager().registerEvents(this, plugin);
+    }
+
+    @Override
+    public void disable() {
+        HandlerList.unregisterAll(this);
+        occupancy.clear();
+        synchronized (observed_villagers) {
+            observed_villagers.clear();
+        }
+    }
+
+    @Override
+    public boolean shouldEnable() {
+        return VillagerOptimizer.getConfiguration().getBoolean(configPath() + ".enable", false);
+    }
+
+    /**
+     * Watches the villager for a while and optimizes it if it stayed in place and is locked in.
+     * Needs to be called on the villager's thread.
+     */
+    private void observe(@NotNull Villager villager) {
+        if (only_employed && (villager.getProfession() == Villager.Profession.NONE || villager.getProfession() == Villager.Profession.NITWIT)) return;
+        if (villagerCache.getOrAdd(villager).isOptimized()) return;
+        synchronized (observed_villagers) {
+            if (!observed_villagers.add(villager.getUniqueId())) return;
+        }
+
+        final Location start = villager.getLocation();
+        scheduler.runAtEntityLater(villager, () -> {
+            synchronized (observed_villagers) {
+                observed_villagers.remove(villager.getUniqueId());
+            }
+            if (!villager.isValid()) return;
+
+            // Cheapest check first, villagers that walked around are obviously not locked in
+            final Location now = villager.getLocation();
+            if (now.getWorld() != start.getWorld()) return;
+            final double dx = now.getX() - start.getX(), dz = now.getZ() - start.getZ();
+            if (dx * dx + dz * dz > max_movement_squared) return;
+
+            final WrappedVillager wrapped = villagerCache.getOrAdd(villager);
+            if (wrapped.isOptimized() || !isConfined(villager)) return;
+
+            VillagerOptimizeEvent optimizeEvent = new VillagerOptimizeEvent(
+                    wrapped,
+                    OptimizationType.CONFINED,
+                    null,
+                    false
+            );
+
+            if (!optimizeEvent.callEvent()) return;
+
+            wrapped.setOptimizationType(optimizeEvent.getOptimizationType());
+
+            if (log_enabled) {
+                info("Optimized locked in villager at " + GenericUtil.formatLocation(now));
+            }
+        }, observe_ticks);
+    }
+
+    /**
+     * Walks the blocks the villager can reach from where it stands. The villager is locked in
+     * if that area is no larger than the maximum cell size.
+     */
+    private boolean isConfined(@NotNull Villager villager) {
+        // Vehicles already keep villagers in place
+        if (villager.isInsideVehicle()) return true;
+
+        final Location location = villager.getLocation();
+        final World world = location.getWorld();
+        final LongOpenHashSet visited = new LongOpenHashSet();
+        final LongArrayFIFOQueue queue = new LongArrayFIFOQueue();
+        final long start = Block.getBlockKey(location.getBlockX(), location.getBlockY(), location.getBlockZ());
+        visited.add(start);
+        queue.enqueue(start);
+
+        while (!queue.isEmpty()) {
+            if (visited.size() > max_cell_size) return false;
+            final long current = queue.dequeueLong();
+            final int x = Block.getBlockKeyX(current), y = Block.getBlockKeyY(current), z = Block.getBlockKeyZ(current);
+
+            for (int[] direction : DIRECTIONS) {
+                final int nx = x + direction[0], nz = z + direction[1];
+                final int feet = occupancy.occupancy(world, nx, y, nz), head = occupancy.occupancy(world, nx, y + 1, nz);
+                if (feet == SectionOccupancyCache.UNKNOWN || head == SectionOccupancyCache.UNKNOWN) return false;
+
+                int ny;
+                if (feet == SectionOccupancyCache.FREE && head == SectionOccupancyCache.FREE) {
+                    final int floor = occupancy.occupancy(world, nx, y - 1, nz);
+                    if (floor == SectionOccupancyCache.UNKNOWN) return false;
+                    // Could drop down and walk away from there
+                    if (floor == SectionOccupancyCache.FREE) return false;
+                    ny = y;
+                } else if (feet == SectionOccupancyCache.BLOCKED && head == SectionOccupancyCache.FREE) {
+                    // Villagers can jump up one block if there is room above both of them.
+                    // Tall blocks like fences and walls can't be jumped on, so they don't get here.
+                    final int above = occupancy.occupancy(world, nx, y + 2, nz), overhead = occupancy.occupancy(world, x, y + 2, z);
+                    if (above == SectionOccupancyCache.UNKNOWN || overhead == SectionOccupancyCache.UNKNOWN) return false;
+                    if (above != SectionOccupancyCache.FREE || overhead != SectionOccupancyCache.FREE) continue;
+                    ny = y + 1;
+                } else {
+                    continue;
+                }
+
+                final long next = Block.getBlockKey(nx, ny, nz);
+                if (visited.add(next)) queue.enqueue(next);
+            }
+        }
+
+        return visited.size() <= max_cell_size;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onEntitiesLoad(EntitiesLoadEvent event) {
+        if (!check_on_chunk_load) return;
+        for (Entity entity : event.getEntities()) {
+            if (entity.getType() == EntityType.VILLAGER) {
+                this.observe((Villager) entity);
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onEntityRemove(EntityRemoveFromWorldEvent event) {
+        // Delayed tasks of unloaded villagers may never run on Folia, so they could be observed again after loading
+        if (event.getEntityType() == EntityType.VILLAGER) {
+            synchronized (observed_villagers) {
+                observed_villagers.remove(event.getEntity().getUniqueId());
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onInteract(PlayerInteractEntityEvent event) {
+        if (event.getRightClicked().getType() != EntityType.VILLAGER) return;
+        final Villager villager = (Villager) event.getRightClicked();
+        final WrappedVillager wrapped = villagerCache.getOrAdd(villager);
+
+        if (wrapped.getOptimizationType() == OptimizationType.CONFINED) {
+            if (!unoptimize_when_freed || isConfined(villager)) return;
+
+            VillagerUnoptimizeEvent unOptimizeEvent = new VillagerUnoptimizeEvent(
+                    wrapped,
+                    null,
+                    OptimizationType.CONFINED,
+                    event.isAsynchronous()
+            );
+
+            if (!unOptimizeEvent.callEvent()) return;
+
+            wrapped.setOptimizationType(OptimizationType.NONE);
+
+            if (log_enabled) {
+                info("Unoptimized villager that is not locked in anymore at " + GenericUtil.formatLocation(villager.getLocation()));
+            }
+        } else if (check_on_interact) {
+            this.observe(villager);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onBlockPlace(BlockPlaceEvent event) {
+        occupancy.invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onBlockBreak(BlockBreakEvent event) {
+        occupancy.invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onOpenableInteract(PlayerInteractEvent event) {
+        // Opening fence gates or trapdoors changes whether villagers can pass them
+        if (event.getAction() == Action.RIGHT_CLICK_BLOCK && event.getClickedBlock() != null
+                && event.getClickedBlock().getBlockData() instanceof Openable) {
+            occupancy.invalidate(event.getClickedBlock());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onPistonExtend(BlockPistonExtendEvent event) {
+        this.invalidateMoved(event, event.getBlocks());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onPistonRetract(BlockPistonRetractEvent event) {
+        this.invalidateMoved(event, event.getBlocks());
+    }
+
+    private void invalidateMoved(@NotNull BlockPistonEvent event, @NotNull List<Block> moved) {
+        occupancy.invalidate(event.getBlock().getRelative(event.getDirection()));
+        for (Block block : moved) {
+            occupancy.invalidate(block);
+            occupancy.invalidate(block.getRelative(event.getDirection()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onEntityExplode(EntityExplodeEvent event) {
+        event.blockList().forEach(occupancy::invalidate);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onBlockExplode(BlockExplodeEvent event) {
+        event.blockList().forEach(occupancy::invalidate);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onFluidFlow(BlockFromToEvent event) {
+        occupancy.invalidate(event.getToBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onRedstone(BlockRedstoneEvent event) {
+        // Doors, trapdoors and fence gates are opened and closed by redstone as well
+        occupancy.invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        // Falling blocks landing, endermen picking up or placing blocks and similar
+        occupancy.invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onBlockForm(BlockFormEvent event) {
+        occupancy.invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onBlockSpread(BlockSpreadEvent event) {
+        occupancy.invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onBlockFade(BlockFadeEvent event) {
+        occupancy.invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onStructureGrow(StructureGrowEvent event) {
+        for (BlockState state : event.getBlocks()) {
+            occupancy.invalidate(state.getBlock());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onChunkUnload(ChunkUnloadEvent event) {
+        occupancy.drop(event.getWorld(), event.getChunk().getX(), event.getChunk().getZ());
+    }
+}
@@ -27,6 +27,7 @@ import org.bukkit.inventory.meta.ItemMeta;
 
 import java.time.Duration;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -35,7 +36,7 @@ import java.util.stream.Collectors;
 public class OptimizeByNametag implements VillagerOptimizerModule, Listener {
 
     private final VillagerCache villagerCache;
-    private final Set<String> nametags;
+    private final Set<String> nametags, throttle_nametags;
     private final long cooldown;
     private final boolean consume_nametag, notify_player, log_enabled;
 
@@ -49,6 +50,10 @@ public class OptimizeByNametag implements VillagerOptimizerModule, Listener {
         this.nametags = config.getList(configPath() + ".names", Arrays.asList("Optimize", "DisableAI"),
                 "Names are case insensitive, capital letters won't matter.")
                 .stream().map(String::toLowerCase).collect(Collectors.toCollection(HashSet::new));
+        this.throttle_nametags = config.getList(configPath() + ".throttle-names", Collections.singletonList("Throttle"),
+                "Villagers named to one of these are throttled instead of optimized. Throttled villagers take turns\n" +
+                "running their AI with the other throttled villagers of their chunk if throttled-villagers is enabled.")
+                .stream().map(String::toLowerCase).collect(Collectors.toCollection(HashSet::new));
         this.consume_nametag = config.getBoolean(configPath() + ".nametags-get-consumed", true,
                 "Enable or disable consumption of the used nametag item.");
         this.cooldown = TimeUnit.SECONDS.toMillis(
@@ -98,11 +103,12 @@ public class OptimizeByNametag implements VillagerOptimizerModule, Listener {
         final Villager villager = (Villager) event.getRightClicked();
         final WrappedVillager wVillager = villagerCache.getOrAdd(villager);
 
-        if (nametags.contains(nameTagPlainText.toLowerCase())) {
+        final boolean throttle = throttle_nametags.contains(nameTagPlainText.toLowerCase());
+        if (throttle || nametags.contains(nameTagPlainText.toLowerCase())) {
             if (wVillager.canOptimize(cooldown) || player.hasPermission(Permissions.Bypass.NAMETAG_COOLDOWN.get())) {
                 VillagerOptimizeEvent optimizeEvent = new VillagerOptimizeEvent(
                         wVillager,
-                        OptimizationType.NAMETAG,
+                        throttle ? OptimizationType.THROTTLED : OptimizationType.NAMETAG,
                         player,
                         event.isAsynchronous()
                 );
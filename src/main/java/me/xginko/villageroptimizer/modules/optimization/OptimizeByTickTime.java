@@ -0,0 +1,284 @@
+package me.xginko.villageroptimizer.modules.optimization;
+
+import com.destroystokyo.paper.event.entity.EntityAddToWorldEvent;
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
+import com.tcoded.folialib.impl.ServerImplementation;
+import com.tcoded.folialib.wrapper.task.WrappedTask;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import me.xginko.villageroptimizer.VillagerCache;
+import me.xginko.villageroptimizer.VillagerChunkIndex;
+import me.xginko.villageroptimizer.VillagerOptimizer;
+import me.xginko.villageroptimizer.config.Config;
+import me.xginko.villageroptimizer.enums.OptimizationType;
+import me.xginko.villageroptimizer.events.VillagerOptimizeEvent;
+import me.xginko.villageroptimizer.events.VillagerUnoptimizeEvent;
+import me.xginko.villageroptimizer.modules.VillagerOptimizerModule;
+import me.xginko.villageroptimizer.wrapper.WrappedVillager;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.Villager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+public class OptimizeByTickTime implements VillagerOptimizerModule, Listener {
+
+    private final ServerImplementation scheduler;
+    private final VillagerCache villagerCache;
+    private final Map<UUID, Villager> auto_optimized;
+    private WrappedTask periodic_check;
+    private VillagerChunkIndex chunkIndex;
+    private final double optimize_above_mspt, revert_below_mspt;
+    private final long check_period;
+    private final int min_unoptimized_per_chunk, max_chunks_per_check, max_reverts_per_check, checks_until_revert;
+    private final boolean log_enabled;
+    private int recovered_checks;
+
+    public OptimizeByTickTime() {
+        shouldEnable();
+        this.scheduler = VillagerOptimizer.getFoliaLib().getImpl();
+        this.villagerCache = VillagerOptimizer.getCache();
+        this.auto_optimized = new LinkedHashMap<>();
+        Config config = VillagerOptimizer.getConfiguration();
+        config.master().addComment(configPath() + ".enable",
+                "When enabled, unoptimized villagers in the chunks with the most of them are optimized automatically\n" +
+                "while the server is lagging, and unoptimized again once it has recovered.\n" +
+                "Villagers that players optimized themselves are never touched. Not available on Folia.\n" +
+                "Automatically optimized villagers are unoptimized right away when this module or the plugin is disabled.\n" +
+                "On reload, they stay optimized and are unoptimized by the reloaded module once the server has recovered.");
+        this.optimize_above_mspt = config.getDouble(configPath() + ".optimize-above-mspt", 45.0,
+                "Optimizes villagers while the average tick time of the last 100 ticks is above this many milliseconds.");
+        this.revert_below_mspt = Math.min(optimize_above_mspt, config.getDouble(configPath() + ".unoptimize-below-mspt", 35.0,
+                "Villagers are unoptimized again once the average tick time is below this many milliseconds.\n" +
+                "Keep some distance to optimize-above-mspt, so villagers don't flip back and forth."));
+        this.check_period = Math.max(1, config.getInt(configPath() + ".check-period-in-ticks", 100,
+                "How often the tick time is checked. 1 second = 20 ticks"));
+        this.checks_until_revert = (int) Math.max(1, Math.ceil(
+                config.getInt(configPath() + ".unoptimize-after-seconds-recovered", 120,
+                "How long the tick time has to stay below unoptimize-below-mspt before villagers are unoptimized again.")
+                * 20.0 / check_period));
+        this.min_unoptimized_per_chunk = Math.max(1, config.getInt(configPath() + ".min-unoptimized-per-chunk", 8,
+                "Only chunks with at least this many unoptimized villagers are optimized."));
+        this.max_chunks_per_check = Math.max(1, config.getInt(configPath() + ".max-chunks-per-check", 4,
+                "How many of the chunks with the most unoptimized villagers are optimized per check."));
+        this.max_reverts_per_check = Math.max(1, config.getInt(configPath() + ".max-unoptimized-per-check", 20,
+                "How many villagers are unoptimized again per check, so recovering doesn't cause lag itself."));
+        this.log_enabled = config.getBoolean(configPath() + ".log", false);
+    }
+
+    @Override
+    public String configPath() {
+        return "optimization-methods.tick-time-optimization";
+    }
+
+    @Override
+    public void enable() {
+        if (VillagerOptimizer.getFoliaLib().isFolia()) {
+            warn("Folia has no global tick time, this module is not available on Folia.");
+            return;
+        }
+        VillagerOptimizer plugin = VillagerOptimizer.getInstance();
+        // Densest chunks are found from the villager counts of the chunk index
+        if (villagerCache.chunkIndex() == null) {
+            info("Enabling general.index-villagers-by-chunk, since this module relies on per-chunk villager counts.");
+        }
+        this.chunkIndex = villagerCache.requireChunkIndex();
+        plugin.getServer().getPluginManager().registerEvents(this, plugin);
+        for (World world : plugin.getServer().getWorlds()) {
+            for (Villager villager : world.getEntitiesByClass(Villager.class)) {
+                this.trackIfAutoOptimized(villager);
+            }
+        }
+        this.periodic_check = scheduler.runTimer(() -> check(plugin.getServer()), check_period, check_period);
+    }
+
+    @Override
+    public void disable() {
+        HandlerList.unregisterAll(this);
+        if (periodic_check != null) periodic_check.cancel();
+        // On reload, the new instance of this module tracks them again, since they stay marked as automatically optimized
+        if (!isReloading()) {
+            // Nothing would unoptimize them anymore if the module stays disabled
+            for (Villager villager : auto_optimized.values()) {
+                if (villager.isValid() && isAutoOptimized(villager)) this.unoptimize(villager, true);
+            }
+        }
+        auto_optimized.clear();
+    }
+
+    /**
+     * Modules are disabled after the new config was loaded, so the module is reloaded if the plugin
+     * keeps running and the new config still enables it.
+     */
+    private boolean isReloading() {
+        return VillagerOptimizer.getInstance().isEnabled() && shouldEnable();
+    }
+
+    @Override
+    public boolean shouldEnable() {
+        return VillagerOptimizer.getConfiguration().getBoolean(configPath() + ".enable", false);
+    }
+
+    private void check(@NotNull Server server) {
+        final double mspt = server.getAverageTickTime();
+
+        if (mspt > optimize_above_mspt) {
+            this.recovered_checks = 0;
+            this.optimizeDensestChunks(server, mspt);
+        } else if (mspt < revert_below_mspt) {
+            if (auto_optimized.isEmpty()) return;
+            if (++recovered_checks >= checks_until_revert) {
+                this.revertSome(mspt);
+            }
+        } else {
+            // In between both thresholds, wait until it's clear where it goes
+            this.recovered_checks = 0;
+        }
+    }
+
+    private void optimizeDensestChunks(@NotNull Server server, double mspt) {
+        // Keeps the chunks with the most unoptimized villagers, fewest on top
+        final PriorityQueue<DenseChunk> densest = new PriorityQueue<>(max_chunks_per_check + 1,
+                (first, second) -> Integer.compare(first.count, second.count));
+
+        for (World world : server.getWorlds()) {
+            for (Long2IntMap.Entry entry : chunkIndex.countsByChunk(world, false).long2IntEntrySet()) {
+                if (entry.getIntValue() < min_unoptimized_per_chunk) continue;
+                if (densest.size() < max_chunks_per_check) {
+                    densest.add(new DenseChunk(world, entry.getLongKey(), entry.getIntValue()));
+                } else if (densest.peek().count < entry.getIntValue()) {
+                    densest.poll();
+                    densest.add(new DenseChunk(world, entry.getLongKey(), entry.getIntValue()));
+                }
+            }
+        }
+
+        for (DenseChunk dense : densest) {
+            final int chunkX = (int) dense.chunkKey, chunkZ = (int) (dense.chunkKey >> 32);
+            if (!dense.world.isChunkLoaded(chunkX, chunkZ)) continue;
+
+            final List<Villager> unoptimized = new ArrayList<>();
+            villagerCache.collectVillagers(dense.world.getChunkAt(chunkX, chunkZ), new ArrayList<>(), unoptimized);
+
+            int optimized = 0;
+            for (Villager villager : unoptimized) {
+                final WrappedVillager wrapped = villagerCache.getOrAdd(villager);
+
+                VillagerOptimizeEvent optimizeEvent = new VillagerOptimizeEvent(
+                        wrapped,
+                        OptimizationType.AUTOMATIC,
+                        null,
+                        false
+                );
+
+                if (!optimizeEvent.callEvent()) continue;
+
+                wrapped.setOptimizationType(optimizeEvent.getOptimizationType());
+                // Other plugins may have turned it into a permanent optimization
+                if (optimizeEvent.getOptimizationType() == OptimizationType.AUTOMATIC) {
+                    auto_optimized.put(villager.getUniqueId(), villager);
+                }
+                optimized++;
+            }
+
+            if (log_enabled && optimized > 0) {
+                info("Optimized " + optimized + " villagers in [" + dense.world.getName() + "] chunk x=" + chunkX + ", z=" + chunkZ +
+                     " because the average tick time is at " + String.format("%.2f", mspt) + "ms");
+            }
+        }
+    }
+
+    private void revertSome(double mspt) {
+        int reverted = 0;
+        final Iterator<Villager> iterator = auto_optimized.values().iterator();
+        while (iterator.hasNext() && reverted < max_reverts_per_check) {
+            final Villager villager = iterator.next();
+            // Players may have optimized it themselves in the meantime
+            if (!isAutoOptimized(villager)) {
+                iterator.remove();
+                continue;
+            }
+            // Stays tracked if another plugin cancelled it, so it is tried again with the next check
+            if (!unoptimize(villager, false)) continue;
+            iterator.remove();
+            reverted++;
+        }
+
+        if (log_enabled && reverted > 0) {
+            info("Unoptimized " + reverted + " villagers because the average tick time recovered to " +
+                 String.format("%.2f", mspt) + "ms");
+        }
+    }
+
+    private boolean isAutoOptimized(@NotNull Villager villager) {
+        return villagerCache.getOrAdd(villager).getOptimizationType() == OptimizationType.AUTOMATIC;
+    }
+
+    /**
+     * @param immediately Applies the change right away instead of queueing it, for when no more tasks can be scheduled.
+     * @return false if the unoptimize event was cancelled.
+     */
+    private boolean unoptimize(@NotNull Villager villager, boolean immediately) {
+        final WrappedVillager wrapped = villagerCache.getOrAdd(villager);
+
+        VillagerUnoptimizeEvent unOptimizeEvent = new VillagerUnoptimizeEvent(
+                wrapped,
+                null,
+                OptimizationType.AUTOMATIC,
+                false
+        );
+
+        if (!unOptimizeEvent.callEvent()) return false;
+
+        if (immediately) {
+            VillagerOptimizer.getPendingOptimizations().applyNow(wrapped, OptimizationType.NONE);
+        } else {
+            wrapped.setOptimizationType(OptimizationType.NONE);
+        }
+        return true;
+    }
+
+    private void trackIfAutoOptimized(@NotNull Villager villager) {
+        if (villagerCache.getOrAdd(villager).getOptimizationType() == OptimizationType.AUTOMATIC) {
+            auto_optimized.put(villager.getUniqueId(), villager);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onEntityAdd(EntityAddToWorldEvent event) {
+        // Automatic optimizations are stored on the villager, so they are reverted after restarts as well
+        if (event.getEntityType() == EntityType.VILLAGER) {
+            this.trackIfAutoOptimized((Villager) event.getEntity());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onEntityRemove(EntityRemoveFromWorldEvent event) {
+        if (event.getEntityType() == EntityType.VILLAGER) {
+            auto_optimized.remove(event.getEntity().getUniqueId());
+        }
+    }
+
+    private static final class DenseChunk {
+        final @NotNull World world;
+        final long chunkKey;
+        final int count;
+
+        DenseChunk(@NotNull World world, long chunkKey, int count) {
+            this.world = world;
+            this.chunkKey = chunkKey;
+            this.count = count;
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package me.xginko.villageroptimizer.modules.optimization;
 
+import com.destroystokyo.paper.event.entity.EntityAddToWorldEvent;
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
 import com.tcoded.folialib.impl.ServerImplementation;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import me.xginko.villageroptimizer.VillagerCache;
 import me.xginko.villageroptimizer.VillagerOptimizer;
 import me.xginko.villageroptimizer.wrapper.WrappedVillager;
@@ -13,26 +16,43 @@ import me.xginko.villageroptimizer.modules.VillagerOptimizerModule;
 import me.xginko.villageroptimizer.utils.GenericUtil;
 import me.xginko.villageroptimizer.utils.KyoriUtil;
 import net.kyori.adventure.text.TextReplacementConfig;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
 import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.block.Block;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
 import org.bukkit.entity.Player;
 import org.bukkit.entity.Villager;
+import org.bukkit.entity.memory.MemoryKey;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.BlockBreakEvent;
 import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.entity.VillagerCareerChangeEvent;
+import org.jetbrains.annotations.NotNull;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class OptimizeByWorkstation implements VillagerOptimizerModule, Listener {
 
     private final ServerImplementation scheduler;
     private final VillagerCache villagerCache;
+    private final Map<UUID, Long2ObjectOpenHashMap<PendingWorkstation>> pending_workstations;
+    private final Map<UUID, Long2ObjectOpenHashMap<Set<Villager>>> optimized_by_job_site;
+    private final Map<UUID, JobSiteKey> indexed_job_sites;
     private final long cooldown_millis;
     private final double search_radius;
     private final int check_duration_ticks;
@@ -42,13 +62,18 @@ public class OptimizeByWorkstation implements VillagerOptimizerModule, Listener
         shouldEnable();
         this.scheduler = VillagerOptimizer.getFoliaLib().getImpl();
         this.villagerCache = VillagerOptimizer.getCache();
+        this.pending_workstations = new HashMap<>();
+        this.optimized_by_job_site = new HashMap<>();
+        this.indexed_job_sites = new HashMap<>();
         Config config = VillagerOptimizer.getConfiguration();
         config.master().addComment(configPath() + ".enable",
                 "When enabled, villagers that have a job and have been traded with at least once will become optimized,\n" +
                 "if near their workstation. If the workstation is broken, the villager will become unoptimized again.");
         this.check_duration_ticks = Math.max(config.getInt(configPath() + ".check-linger-duration-ticks", 100,
                 "After a workstation has been placed, the plugin will wait for the configured amount of time in ticks\n" +
-                "for a villager to claim that workstation. Not recommended to go below 100 ticks."), 1);
+                "for a villager to claim that workstation. Not recommended to go below 100 ticks.\n" +
+                "Unemployed villagers are matched when they take the job. Villagers within the search radius that already\n" +
+                "have the profession but no workstation are checked every 10 ticks until one of them claims it."), 1);
         this.search_radius = config.getDouble(configPath() + ".search-radius-in-blocks", 2.0,
                 "The radius in blocks a villager can be away from the player when he places a workstation.\n" +
                 "The closest unoptimized villager to the player will be optimized.");
@@ -72,11 +97,34 @@ public class OptimizeByWorkstation implements VillagerOptimizerModule, Listener
     public void enable() {
         VillagerOptimizer plugin = VillagerOptimizer.getInstance();
         plugin.getServer().getPluginManager().registerEvents(this, plugin);
+        // Villagers that are already loaded don't call EntityAddToWorldEvent anymore
+        for (World world : plugin.getServer().getWorlds()) {
+            if (VillagerOptimizer.getFoliaLib().isFolia()) {
+                for (Chunk chunk : world.getLoadedChunks()) {
+                    scheduler.runAtLocation(new Location(world, chunk.getX() << 4, 0, chunk.getZ() << 4), indexChunk -> {
+                        for (Entity entity : chunk.getEntities()) {
+                            if (entity.getType() == EntityType.VILLAGER) this.indexIfWorkstationOptimized((Villager) entity);
+                        }
+                    });
+                }
+            } else {
+                for (Villager villager : world.getEntitiesByClass(Villager.class)) {
+                    this.indexIfWorkstationOptimized(villager);
+                }
+            }
+        }
     }
 
     @Override
     public void disable() {
         HandlerList.unregisterAll(this);
+        synchronized (pending_workstations) {
+            pending_workstations.clear();
+        }
+        synchronized (optimized_by_job_site) {
+            optimized_by_job_site.clear();
+            indexed_job_sites.clear();
+        }
     }
 
     @Override
@@ -94,70 +142,157 @@ public class OptimizeByWorkstation implements VillagerOptimizerModule, Listener
         if (only_while_sneaking && !player.isSneaking()) return;
         if (!player.hasPermission(Permissions.Optimize.WORKSTATION.get())) return;
 
-        final Location workstationLoc = placed.getLocation();
-        final AtomicBoolean taskComplete = new AtomicBoolean();
-        final AtomicInteger taskAliveTicks = new AtomicInteger();
+        final PendingWorkstation pending = new PendingWorkstation(placed, workstationProfession, player.getUniqueId(),
+                System.currentTimeMillis() + check_duration_ticks * 50L);
+        synchronized (pending_workstations) {
+            Long2ObjectOpenHashMap<PendingWorkstation> worldPending = pending_workstations.get(placed.getWorld().getUID());
+            if (worldPending == null) {
+                worldPending = new Long2ObjectOpenHashMap<>();
+                pending_workstations.put(placed.getWorld().getUID(), worldPending);
+            }
+            // Drop workstations nobody claimed in time
+            worldPending.values().removeIf(PendingWorkstation::isExpired);
+            worldPending.put(placed.getBlockKey(), pending);
+        }
+
+        // Unemployed villagers are resolved by onCareerChange. Villagers that kept their profession after losing their
+        // workstation don't change careers when claiming it, so only their job site memory is watched until they do.
+        final List<Villager> waiting = new ArrayList<>();
+        for (Villager villager : placed.getLocation().getNearbyEntitiesByType(Villager.class, search_radius)) {
+            if (villager.getProfession() == workstationProfession && villager.getMemory(MemoryKey.JOB_SITE) == null) {
+                waiting.add(villager);
+            }
+        }
+        if (waiting.isEmpty()) return;
 
-        scheduler.runAtLocationTimer(workstationLoc, repeatingTask -> {
-            if (taskComplete.get() || taskAliveTicks.getAndAdd(10) > check_duration_ticks) {
+        scheduler.runAtLocationTimer(placed.getLocation(), repeatingTask -> {
+            if (!isPending(pending)) {
                 repeatingTask.cancel();
                 return;
             }
-
-            for (Villager villager : workstationLoc.getNearbyEntitiesByType(Villager.class, search_radius)) {
-                if (villager.getProfession() != workstationProfession) continue;
-                WrappedVillager wrapped = villagerCache.getOrAdd(villager);
-                if (wrapped.getJobSite() == null) continue;
-                if (wrapped.getJobSite().distanceSquared(workstationLoc) > 1) continue;
-
-                if (!wrapped.canOptimize(cooldown_millis) && !player.hasPermission(Permissions.Bypass.WORKSTATION_COOLDOWN.get())) {
-                    wrapped.sayNo();
-                    if (notify_player) {
-                        final TextReplacementConfig timeLeft = TextReplacementConfig.builder()
-                                .matchLiteral("%time%")
-                                .replacement(GenericUtil.formatDuration(Duration.ofMillis(wrapped.getOptimizeCooldownMillis(cooldown_millis))))
-                                .build();
-                        VillagerOptimizer.getLang(player.locale()).nametag_on_optimize_cooldown
-                                .forEach(line -> KyoriUtil.sendMessage(player, line.replaceText(timeLeft)));
-                    }
-                    taskComplete.set(true);
+            for (Villager villager : waiting) {
+                if (!villager.isValid()) continue;
+                final Location jobSite = villager.getMemory(MemoryKey.JOB_SITE);
+                if (jobSite != null && pending.isAt(jobSite)) {
+                    claim(villager, pending, false);
+                    repeatingTask.cancel();
                     return;
                 }
+            }
+        }, 1L, 10L);
+    }
 
-                VillagerOptimizeEvent optimizeEvent = new VillagerOptimizeEvent(
-                        wrapped,
-                        OptimizationType.WORKSTATION,
-                        player,
-                        event.isAsynchronous()
-                );
-
-                if (!optimizeEvent.callEvent()) return;
-
-                wrapped.setOptimizationType(optimizeEvent.getOptimizationType());
-                wrapped.saveOptimizeTime();
-
-                if (notify_player) {
-                    final TextReplacementConfig vilProfession = TextReplacementConfig.builder()
-                            .matchLiteral("%vil_profession%")
-                            .replacement(wrapped.villager().getProfession().toString().toLowerCase())
-                            .build();
-                    final TextReplacementConfig placedWorkstation = TextReplacementConfig.builder()
-                            .matchLiteral("%blocktype%")
-                            .replacement(placed.getType().toString().toLowerCase())
-                            .build();
-                    VillagerOptimizer.getLang(player.locale()).workstation_optimize_success
-                            .forEach(line -> KyoriUtil.sendMessage(player, line.replaceText(vilProfession).replaceText(placedWorkstation)));
-                }
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onCareerChange(VillagerCareerChangeEvent event) {
+        if (event.getReason() != VillagerCareerChangeEvent.ChangeReason.EMPLOYED) return;
+        synchronized (pending_workstations) {
+            if (pending_workstations.isEmpty()) return;
+        }
 
-                if (log_enabled) {
-                    info(player.getName() + " optimized villager using workstation " + placed.getType() + " at " +
-                         GenericUtil.formatLocation(wrapped.villager().getLocation()));
-                }
+        final Villager villager = event.getEntity();
+        final Location jobSite = villager.getMemory(MemoryKey.JOB_SITE);
+        if (jobSite != null) {
+            // The event is called before the profession is changed
+            this.claimIfPending(villager, event.getProfession(), jobSite, event.isAsynchronous());
+        } else {
+            // Job site memory is not set yet, look again once the villager has finished taking the job
+            scheduler.runAtEntityLater(villager, () -> {
+                final Location claimed = villager.getMemory(MemoryKey.JOB_SITE);
+                if (claimed != null) this.claimIfPending(villager, villager.getProfession(), claimed, false);
+            }, 1L);
+        }
+    }
 
-                taskComplete.set(true);
-                return;
+    private void claimIfPending(@NotNull Villager villager, @NotNull Villager.Profession profession, @NotNull Location jobSite, boolean async) {
+        final PendingWorkstation pending;
+        synchronized (pending_workstations) {
+            final Long2ObjectOpenHashMap<PendingWorkstation> worldPending = pending_workstations.get(jobSite.getWorld().getUID());
+            if (worldPending == null) return;
+            pending = worldPending.get(Block.getBlockKey(jobSite.getBlockX(), jobSite.getBlockY(), jobSite.getBlockZ()));
+        }
+        if (pending == null || pending.profession != profession) return;
+        this.claim(villager, pending, async);
+    }
+
+    private boolean isPending(@NotNull PendingWorkstation pending) {
+        synchronized (pending_workstations) {
+            if (pending.isExpired()) {
+                this.removePending(pending);
+                return false;
             }
-        }, 1L, 10L);
+            final Long2ObjectOpenHashMap<PendingWorkstation> worldPending = pending_workstations.get(pending.worldUID);
+            return worldPending != null && worldPending.get(pending.blockKey) == pending;
+        }
+    }
+
+    /**
+     * Needs to be called while holding the lock on pending_workstations.
+     */
+    private void removePending(@NotNull PendingWorkstation pending) {
+        final Long2ObjectOpenHashMap<PendingWorkstation> worldPending = pending_workstations.get(pending.worldUID);
+        if (worldPending == null || worldPending.get(pending.blockKey) != pending) return;
+        worldPending.remove(pending.blockKey);
+        if (worldPending.isEmpty()) pending_workstations.remove(pending.worldUID);
+    }
+
+    private void claim(@NotNull Villager villager, @NotNull PendingWorkstation pending, boolean async) {
+        synchronized (pending_workstations) {
+            // Only the first villager to claim the workstation is optimized
+            if (!isPending(pending)) return;
+            this.removePending(pending);
+        }
+
+        final Player player = Bukkit.getPlayer(pending.playerUID);
+        if (player == null) return;
+        if (villager.getLocation().distanceSquared(pending.location) > search_radius * search_radius) return;
+
+        WrappedVillager wrapped = villagerCache.getOrAdd(villager);
+
+        if (!wrapped.canOptimize(cooldown_millis) && !player.hasPermission(Permissions.Bypass.WORKSTATION_COOLDOWN.get())) {
+            wrapped.sayNo();
+            if (notify_player) {
+                final TextReplacementConfig timeLeft = TextReplacementConfig.builder()
+                        .matchLiteral("%time%")
+                        .replacement(GenericUtil.formatDuration(Duration.ofMillis(wrapped.getOptimizeCooldownMillis(cooldown_millis))))
+                        .build();
+                VillagerOptimizer.getLang(player.locale()).nametag_on_optimize_cooldown
+                        .forEach(line -> KyoriUtil.sendMessage(player, line.replaceText(timeLeft)));
+            }
+            return;
+        }
+
+        VillagerOptimizeEvent optimizeEvent = new VillagerOptimizeEvent(
+                wrapped,
+                OptimizationType.WORKSTATION,
+                player,
+                async
+        );
+
+        if (!optimizeEvent.callEvent()) return;
+
+        wrapped.setOptimizationType(optimizeEvent.getOptimizationType());
+        wrapped.saveOptimizeTime();
+        if (optimizeEvent.getOptimizationType() == OptimizationType.WORKSTATION) {
+            this.indexJobSite(villager, pending.location);
+        }
+
+        if (notify_player) {
+            final TextReplacementConfig vilProfession = TextReplacementConfig.builder()
+                    .matchLiteral("%vil_profession%")
+                    .replacement(pending.profession.toString().toLowerCase())
+                    .build();
+            final TextReplacementConfig placedWorkstation = TextReplacementConfig.builder()
+                    .matchLiteral("%blocktype%")
+                    .replacement(pending.type.toString().toLowerCase())
+                    .build();
+            VillagerOptimizer.getLang(player.locale()).workstation_optimize_success
+                    .forEach(line -> KyoriUtil.sendMessage(player, line.replaceText(vilProfession).replaceText(placedWorkstation)));
+        }
+
+        if (log_enabled) {
+            info(player.getName() + " optimized villager using workstation " + pending.type + " at " +
+                 GenericUtil.formatLocation(wrapped.villager().getLocation()));
+        }
     }
 
     @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
@@ -166,25 +301,44 @@ public class OptimizeByWorkstation implements VillagerOptimizerModule, Listener
         final Villager.Profession workstationProfession = GenericUtil.getWorkstationProfession(broken.getType());
         if (workstationProfession == null) return;
 
+        synchronized (pending_workstations) {
+            final Long2ObjectOpenHashMap<PendingWorkstation> worldPending = pending_workstations.get(broken.getWorld().getUID());
+            if (worldPending != null) {
+                final PendingWorkstation pending = worldPending.get(broken.getBlockKey());
+                if (pending != null) this.removePending(pending);
+            }
+        }
+
         final Player player = event.getPlayer();
         if (!player.hasPermission(Permissions.Optimize.WORKSTATION.get())) return;
         if (only_while_sneaking && !player.isSneaking()) return;
 
         final Location workstationLoc = broken.getLocation();
-        WrappedVillager closestOptimized = null;
-        double closestDistance = Double.MAX_VALUE;
+        final List<Villager> optimizedHere;
+        synchronized (optimized_by_job_site) {
+            final Long2ObjectOpenHashMap<Set<Villager>> worldIndex = optimized_by_job_site.get(broken.getWorld().getUID());
+            if (worldIndex == null) return;
+            final Set<Villager> indexed = worldIndex.get(broken.getBlockKey());
+            if (indexed == null) return;
+            optimizedHere = new ArrayList<>(indexed);
+        }
 
-        for (Villager villager : workstationLoc.getNearbyEntitiesByType(Villager.class, search_radius)) {
-            if (!villager.getProfession().equals(workstationProfession)) continue;
-            final double distance = villager.getLocation().distanceSquared(workstationLoc);
-            if (distance >= closestDistance) continue;
+        WrappedVillager closestOptimized = null;
+        double closestDistance = search_radius * search_radius;
 
+        for (Villager villager : optimizedHere) {
             WrappedVillager wrapped = villagerCache.getOrAdd(villager);
-
-            if (wrapped.isOptimized()) {
-                closestOptimized = wrapped;
-                closestDistance = distance;
+            // Entries are only hints, the villager may have been unoptimized or optimized differently in the meantime
+            if (!villager.isValid() || wrapped.getOptimizationType() != OptimizationType.WORKSTATION) {
+                this.unindexJobSite(villager);
+                continue;
             }
+            if (villager.getProfession() != workstationProfession) continue;
+            final double distance = villager.getLocation().distanceSquared(workstationLoc);
+            if (distance > closestDistance) continue;
+
+            closestOptimized = wrapped;
+            closestDistance = distance;
         }
 
         if (closestOptimized == null) return;
@@ -199,6 +353,7 @@ public class OptimizeByWorkstation implements VillagerOptimizerModule, Listener
         if (!unOptimizeEvent.callEvent()) return;
 
         closestOptimized.setOptimizationType(OptimizationType.NONE);
+        this.unindexJobSite(closestOptimized.villager());
 
         if (notify_player) {
             final TextReplacementConfig vilProfession = TextReplacementConfig.builder()
@@ -218,4 +373,100 @@ public class OptimizeByWorkstation implements VillagerOptimizerModule, Listener
                  GenericUtil.formatLocation(closestOptimized.villager().getLocation()));
         }
     }
-}
\ No newline at end of file
+
+    private void indexIfWorkstationOptimized(@NotNull Villager villager) {
+        final WrappedVillager wrapped = villagerCache.getOrAdd(villager);
+        if (wrapped.getOptimizationType() != OptimizationType.WORKSTATION) return;
+        final Location jobSite = wrapped.getJobSite();
+        if (jobSite != null) this.indexJobSite(villager, jobSite);
+    }
+
+    private void indexJobSite(@NotNull Villager villager, @NotNull Location jobSite) {
+        this.unindexJobSite(villager);
+        final long blockKey = Block.getBlockKey(jobSite.getBlockX(), jobSite.getBlockY(), jobSite.getBlockZ());
+        synchronized (optimized_by_job_site) {
+            Long2ObjectOpenHashMap<Set<Villager>> worldIndex = optimized_by_job_site.get(jobSite.getWorld().getUID());
+            if (worldIndex == null) {
+                worldIndex = new Long2ObjectOpenHashMap<>();
+                optimized_by_job_site.put(jobSite.getWorld().getUID(), worldIndex);
+            }
+            Set<Villager> villagers = worldIndex.get(blockKey);
+            if (villagers == null) {
+                villagers = new HashSet<>(2);
+                worldIndex.put(blockKey, villagers);
+            }
+            villagers.add(villager);
+            indexed_job_sites.put(villager.getUniqueId(), new JobSiteKey(jobSite.getWorld().getUID(), blockKey));
+        }
+    }
+
+    /**
+     * Removes the villager from the job site it was indexed at, which may differ from its current world and job site.
+     */
+    private void unindexJobSite(@NotNull Villager villager) {
+        final UUID villagerUID = villager.getUniqueId();
+        synchronized (optimized_by_job_site) {
+            final JobSiteKey key = indexed_job_sites.remove(villagerUID);
+            if (key == null) return;
+            final Long2ObjectOpenHashMap<Set<Villager>> worldIndex = optimized_by_job_site.get(key.worldUID);
+            if (worldIndex == null) return;
+            final Set<Villager> villagers = worldIndex.get(key.blockKey);
+            if (villagers == null) return;
+            // A villager that changed worlds is a new entity instance, so it is matched by its UUID
+            villagers.removeIf(indexed -> indexed.getUniqueId().equals(villagerUID));
+            if (villagers.isEmpty()) worldIndex.remove(key.blockKey);
+            if (worldIndex.isEmpty()) optimized_by_job_site.remove(key.worldUID);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onEntityAdd(EntityAddToWorldEvent event) {
+        if (event.getEntityType() == EntityType.VILLAGER) {
+            this.indexIfWorkstationOptimized((Villager) event.getEntity());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onEntityRemove(EntityRemoveFromWorldEvent event) {
+        if (event.getEntityType() == EntityType.VILLAGER) {
+            this.unindexJobSite((Villager) event.getEntity());
+        }
+    }
+
+    private static final class JobSiteKey {
+        final @NotNull UUID worldUID;
+        final long blockKey;
+
+        JobSiteKey(@NotNull UUID worldUID, long blockKey) {
+            this.worldUID = worldUID;
+            this.blockKey = blockKey;
+        }
+    }
+
+    private static final class PendingWorkstation {
+        final @NotNull UUID worldUID, playerUID;
+        final @NotNull Location location;
+        final @NotNull Material type;
+        final @NotNull Villager.Profession profession;
+        final long blockKey, expiresAtMillis;
+
+        PendingWorkstation(@NotNull Block block, @NotNull Villager.Profession profession, @NotNull UUID playerUID, long expiresAtMillis) {
+            this.worldUID = block.getWorld().getUID();
+            this.location = block.getLocation();
+            this.type = block.getType();
+            this.blockKey = block.getBlockKey();
+            this.profession = profession;
+            this.playerUID = playerUID;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > expiresAtMillis;
+        }
+
+        boolean isAt(@NotNull Location jobSite) {
+            return jobSite.getWorld().getUID().equals(worldUID)
+                    && Block.getBlockKey(jobSite.getBlockX(), jobSite.getBlockY(), jobSite.getBlockZ()) == blockKey;
+        }
+    }
+}
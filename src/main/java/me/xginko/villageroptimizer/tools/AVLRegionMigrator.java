@@ -0,0 +1,445 @@
+package me.xginko.villageroptimizer.tools;
+
+import me.xginko.villageroptimizer.enums.OptimizationType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Offline tool that rewrites AntiVillagerLag villager data to VillagerOptimizer data directly in a world's
+ * entity region files, so villagers in chunks that are never visited get migrated as well.
+ * Only run this against the world folders of a stopped server.
+ * <p>
+ * Usage: {@code java -cp VillagerOptimizer.jar me.xginko.villageroptimizer.tools.AVLRegionMigrator <world folder>... [--apply] [--threads <count>]}
+ * <p>
+ * Without {@code --apply} nothing is written and only a report of what would be migrated is printed.
+ */
+public final class AVLRegionMigrator {
+
+    // Mirrors Keyring, which can't be loaded without a server on the classpath.
+    // AntiVillagerLag creates its keys with the plugin constructor, which lowercases them.
+    private static final String AVL_NAMESPACE = "antivillagerlag:", VO_NAMESPACE = "villageroptimizer:";
+    private static final String AVL_COOLDOWN = "cooldown", AVL_RESTOCK_TIME = "time", AVL_LEVEL_COOLDOWN = "levelcooldown",
+            AVL_MARKER = "marker", AVL_BLOCK = "disabledbyblock", AVL_WORKSTATION = "disabledbyworkstation";
+    private static final String VO_OPTIMIZATION_TYPE = VO_NAMESPACE + "optimization-type", VO_LAST_OPTIMIZE = VO_NAMESPACE + "last-optimize",
+            VO_LAST_LEVELUP = VO_NAMESPACE + "last-levelup", VO_LAST_RESTOCK = VO_NAMESPACE + "last-restock",
+            VO_VILLAGER_DATA = VO_NAMESPACE + "villager-data";
+
+    private static final int SECTOR_BYTES = 4096, CHUNKS_PER_REGION = 1024;
+    private static final byte COMPRESSION_GZIP = 1, COMPRESSION_ZLIB = 2, COMPRESSION_NONE = 3, COMPRESSION_EXTERNAL = (byte) 128;
+
+    private final boolean apply;
+    private final long now;
+
+    private AVLRegionMigrator(boolean apply) {
+        this.apply = apply;
+        this.now = System.currentTimeMillis();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final List<Path> worldFolders = new ArrayList<>();
+        boolean apply = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("--apply")) {
+                apply = true;
+            } else if (args[i].equalsIgnoreCase("--threads") && i + 1 < args.length) {
+                try {
+                    threads = Math.max(1, Integer.parseInt(args[++i]));
+                } catch (NumberFormatException e) {
+                    System.err.println("Thread count '" + args[i] + "' is not a number.");
+                    return;
+                }
+            } else {
+                worldFolders.add(Paths.get(args[i]));
+            }
+        }
+
+        if (worldFolders.isEmpty()) {
+            System.out.println("Usage: java -cp VillagerOptimizer.jar me.xginko.villageroptimizer.tools.AVLRegionMigrator <world folder>... [--apply] [--threads <count>]");
+            System.out.println("Migrates AntiVillagerLag villager data to VillagerOptimizer in the entity region files.");
+            System.out.println("Only use on a stopped server. Without --apply, only a report is printed and nothing is changed.");
+            return;
+        }
+
+        final AVLRegionMigrator migrator = new AVLRegionMigrator(apply);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (Path worldFolder : worldFolders) {
+                migrator.migrateWorld(worldFolder, executor);
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        if (!apply) {
+            System.out.println("Dry run, no files were changed. Run again with --apply to migrate.");
+        }
+    }
+
+    private void migrateWorld(@NotNull Path worldFolder, @NotNull ExecutorService executor) throws InterruptedException {
+        if (!Files.isDirectory(worldFolder)) {
+            System.err.println(worldFolder + " is not a directory, skipping.");
+            return;
+        }
+
+        final Long dayTime = readDayTime(worldFolder.resolve("level.dat"));
+        if (dayTime == null) {
+            System.out.println(worldFolder + ": Could not read level.dat, restock times will not be migrated.");
+        }
+
+        final List<Future<RegionReport>> reports = new ArrayList<>();
+        for (String dimension : new String[]{"entities", "DIM-1/entities", "DIM1/entities"}) {
+            final Path entitiesFolder = worldFolder.resolve(dimension);
+            if (!Files.isDirectory(entitiesFolder)) continue;
+            try (DirectoryStream<Path> regionFiles = Files.newDirectoryStream(entitiesFolder, "r.*.*.mca")) {
+                for (Path regionFile : regionFiles) {
+                    reports.add(executor.submit(() -> migrateRegion(regionFile, dayTime)));
+                }
+            } catch (IOException e) {
+                System.err.println("Unable to list region files in " + entitiesFolder + ": " + e.getLocalizedMessage());
+            }
+        }
+
+        final RegionReport total = new RegionReport();
+        for (Future<RegionReport> future : reports) {
+            try {
+                total.add(future.get());
+            } catch (ExecutionException e) {
+                total.failedRegions++;
+                System.err.println("Failed to migrate a region file: " + e.getCause());
+            }
+        }
+
+        System.out.println(worldFolder + ": Scanned " + total.regions + " region files with " + total.chunks + " chunks.");
+        System.out.println("  " + (apply ? "Migrated " : "Would migrate ") + total.villagers + " villagers in "
+                + total.changedChunks + " chunks of " + total.changedRegions + " region files.");
+        for (OptimizationType type : OptimizationType.values()) {
+            if (total.villagersByType[type.ordinal()] > 0) {
+                System.out.println("    " + type.name().toLowerCase(Locale.ROOT) + ": " + total.villagersByType[type.ordinal()]);
+            }
+        }
+        if (total.skippedChunks > 0) {
+            System.out.println("  Skipped " + total.skippedChunks + " chunks with unsupported compression or external storage.");
+        }
+        if (total.failedRegions > 0) {
+            System.out.println("  " + total.failedRegions + " region files could not be processed, see errors above.");
+        }
+    }
+
+    private @NotNull RegionReport migrateRegion(@NotNull Path regionFile, @Nullable Long dayTime) {
+        final RegionReport report = new RegionReport();
+        report.regions = 1;
+        try {
+            migrateRegion(regionFile, dayTime, report);
+        } catch (IOException e) {
+            report.failedRegions = 1;
+            System.err.println("Failed to migrate " + regionFile + ": " + e.getLocalizedMessage());
+        }
+        return report;
+    }
+
+    private void migrateRegion(@NotNull Path regionFile, @Nullable Long dayTime, @NotNull RegionReport report) throws IOException {
+        // Read onto the heap instead of mapping the file, a mapped file can't be replaced on Windows
+        final byte[] original = Files.readAllBytes(regionFile);
+        if (original.length < SECTOR_BYTES * 2) return; // Empty or not yet written
+
+        final ByteBuffer region = ByteBuffer.wrap(original);
+        final byte[][] migratedChunks = new byte[CHUNKS_PER_REGION][];
+        boolean changed = false;
+
+        for (int i = 0; i < CHUNKS_PER_REGION; i++) {
+            final int location = region.getInt(i * 4);
+            if (location == 0) continue;
+
+            // Chunks that can't be read are left exactly as they are
+            final long offset = (long) (location >>> 8) * SECTOR_BYTES;
+            if (offset < SECTOR_BYTES * 2 || offset + 5 > original.length) continue;
+            final int length = region.getInt((int) offset); // Includes the compression byte
+            if (length <= 0 || offset + 4L + length > original.length) continue;
+
+            final byte compression = region.get((int) offset + 4);
+            final byte[] data = Arrays.copyOfRange(original, (int) offset + 5, (int) offset + 4 + length);
+            report.chunks++;
+
+            final byte[] migrated = migrateChunk(compression, data, dayTime, report);
+            if (migrated != null) {
+                migratedChunks[i] = migrated;
+                report.changedChunks++;
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            report.changedRegions = 1;
+            if (apply) writeRegion(regionFile, original, migratedChunks, (int) (now / 1000L));
+        }
+    }
+
+    private @Nullable byte[] migrateChunk(byte compression, byte[] data, @Nullable Long dayTime, @NotNull RegionReport report) throws IOException {
+        final InputStream in;
+        switch (compression) {
+            case COMPRESSION_GZIP: in = new GZIPInputStream(new ByteArrayInputStream(data)); break;
+            case COMPRESSION_ZLIB: in = new InflaterInputStream(new ByteArrayInputStream(data)); break;
+            case COMPRESSION_NONE: in = new ByteArrayInputStream(data); break;
+            default:
+                // LZ4 or stored in an external .mcc file, leave untouched
+                report.skippedChunks++;
+                return null;
+        }
+
+        final Map<String, Object> root;
+        try (DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in))) {
+            root = NBT.readRoot(dataIn);
+        }
+
+        final Object entities = root.get("Entities");
+        if (!(entities instanceof NBT.ListTag)) return null;
+        boolean changed = false;
+        for (Object entity : ((NBT.ListTag) entities).elements) {
+            changed |= migrateEntity(entity, dayTime, report);
+        }
+        if (!changed) return null;
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length);
+        try (DataOutputStream dataOut = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            NBT.writeRoot(dataOut, root);
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean migrateEntity(Object entityTag, @Nullable Long dayTime, @NotNull RegionReport report) {
+        if (!(entityTag instanceof Map)) return false;
+        final Map<String, Object> entity = (Map<String, Object>) entityTag;
+        boolean changed = false;
+
+        // Villagers can be riding other entities
+        final Object passengers = entity.get("Passengers");
+        if (passengers instanceof NBT.ListTag) {
+            for (Object passenger : ((NBT.ListTag) passengers).elements) {
+                changed |= migrateEntity(passenger, dayTime, report);
+            }
+        }
+
+        final Object bukkitValues = entity.get("BukkitValues");
+        if ("minecraft:villager".equals(entity.get("id")) && bukkitValues instanceof Map) {
+            changed |= migrateVillager((Map<String, Object>) bukkitValues, dayTime, report);
+        }
+        return changed;
+    }
+
+    private boolean migrateVillager(@NotNull Map<String, Object> bukkitValues, @Nullable Long dayTime, @NotNull RegionReport report) {
+        boolean hasAVLData = false;
+        boolean block = false, workstation = false, marker = false;
+        long lastOptimize = 0L, lastLevelUp = 0L, lastRestock = 0L;
+
+        final Iterator<Map.Entry<String, Object>> iterator = bukkitValues.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Object> entry = iterator.next();
+            if (!entry.getKey().toLowerCase(Locale.ROOT).startsWith(AVL_NAMESPACE)) continue;
+            final String avlKey = entry.getKey().substring(AVL_NAMESPACE.length()).toLowerCase(Locale.ROOT);
+            final Object value = entry.getValue();
+            iterator.remove();
+            hasAVLData = true;
+
+            switch (avlKey) {
+                case AVL_BLOCK: block = true; break;
+                case AVL_WORKSTATION: workstation = true; break;
+                case AVL_MARKER: marker = true; break;
+                // AntiVillagerLag stores when the next action is allowed, we store when the last one happened
+                case AVL_COOLDOWN:
+                    if (value instanceof Long) lastOptimize = Math.min(now, TimeUnit.SECONDS.toMillis((Long) value));
+                    break;
+                case AVL_LEVEL_COOLDOWN:
+                    if (value instanceof Long) lastLevelUp = Math.min(now, TimeUnit.SECONDS.toMillis((Long) value));
+                    break;
+                case AVL_RESTOCK_TIME:
+                    if (value instanceof Long && dayTime != null) lastRestock = now - Math.max(0L, dayTime - (Long) value) * 50L;
+                    break;
+            }
+        }
+
+        if (!hasAVLData) return false;
+
+        // Same precedence as AVLVillagerDataHandlerImpl#getOptimizationType
+        final OptimizationType type = block ? OptimizationType.BLOCK : workstation ? OptimizationType.WORKSTATION
+                : marker ? OptimizationType.COMMAND : OptimizationType.NONE;
+
+        final Object record = bukkitValues.get(VO_VILLAGER_DATA);
+        if (record instanceof byte[] && ((byte[]) record).length == 26 && ((byte[]) record)[0] == 1) {
+            // Compact record, see VillagerDataRecord for the layout
+            final ByteBuffer buffer = ByteBuffer.wrap((byte[]) record);
+            if (OptimizationType.fromCode(buffer.get(1)) == OptimizationType.NONE) buffer.put(1, type.code());
+            buffer.putLong(2, Math.max(buffer.getLong(2), lastOptimize));
+            buffer.putLong(10, Math.max(buffer.getLong(10), lastRestock));
+            buffer.putLong(18, Math.max(buffer.getLong(18), lastLevelUp));
+        } else {
+            if (type != OptimizationType.NONE && !bukkitValues.containsKey(VO_OPTIMIZATION_TYPE)) {
+                bukkitValues.put(VO_OPTIMIZATION_TYPE, type.code());
+            }
+            putIfLater(bukkitValues, VO_LAST_OPTIMIZE, lastOptimize);
+            putIfLater(bukkitValues, VO_LAST_RESTOCK, lastRestock);
+            putIfLater(bukkitValues, VO_LAST_LEVELUP, lastLevelUp);
+        }
+
+        report.villagers++;
+        report.villagersByType[type.ordinal()]++;
+        return true;
+    }
+
+    private static void putIfLater(@NotNull Map<String, Object> bukkitValues, @NotNull String key, long millis) {
+        if (millis == 0L) return;
+        final Object existing = bukkitValues.get(key);
+        if (existing instanceof Long && (Long) existing >= millis) return;
+        bukkitValues.put(key, millis);
+    }
+
+    private static byte[] packChunk(byte compression, byte[] data) {
+        final ByteBuffer buffer = ByteBuffer.allocate(data.length + 5);
+        buffer.putInt(data.length + 1);
+        buffer.put(compression);
+        buffer.put(data);
+        return buffer.array();
+    }
+
+    /**
+     * Writes the migrated chunks into a copy of the original region file, everything else stays byte for byte the same.
+     * Migrated chunks are written over their old sectors if they still fit and appended to the file otherwise.
+     * Like vanilla, chunks that need more than 255 sectors are stored in an external .mcc file next to the region file.
+     */
+    static void writeRegion(@NotNull Path regionFile, byte[] original, byte[][] migratedChunks, int timestamp) throws IOException {
+        final int[] regionCoordinates = regionCoordinates(regionFile);
+        // Region files are not always padded to full sectors
+        final int originalSectors = (original.length + SECTOR_BYTES - 1) / SECTOR_BYTES;
+        final byte[] rewritten = Arrays.copyOf(original, originalSectors * SECTOR_BYTES);
+        final ByteBuffer header = ByteBuffer.wrap(rewritten);
+        final ByteArrayOutputStream appended = new ByteArrayOutputStream();
+        int nextSector = originalSectors;
+
+        for (int i = 0; i < CHUNKS_PER_REGION; i++) {
+            if (migratedChunks[i] == null) continue;
+
+            byte[] packed = packChunk(COMPRESSION_ZLIB, migratedChunks[i]);
+            int sectors = (packed.length + SECTOR_BYTES - 1) / SECTOR_BYTES;
+            if (sectors > 255) {
+                if (regionCoordinates == null) {
+                    throw new IOException("Chunk " + i + " in " + regionFile + " needs an external file, but the region coordinates are unknown");
+                }
+                final int chunkX = regionCoordinates[0] * 32 + (i & 31), chunkZ = regionCoordinates[1] * 32 + (i >> 5);
+                writeAtomically(regionFile.resolveSibling("c." + chunkX + "." + chunkZ + ".mcc"), migratedChunks[i]);
+                packed = packChunk((byte) (COMPRESSION_ZLIB | COMPRESSION_EXTERNAL), new byte[0]);
+                sectors = 1;
+            }
+
+            final int location = header.getInt(i * 4);
+            final int sector;
+            if (sectors <= (location & 0xFF) && (location >>> 8) + (location & 0xFF) <= originalSectors) {
+                sector = location >>> 8;
+                System.arraycopy(packed, 0, rewritten, sector * SECTOR_BYTES, packed.length);
+            } else {
+                sector = nextSector;
+                appended.write(packed);
+                appended.write(new byte[sectors * SECTOR_BYTES - packed.length]); // Pad to full sectors
+                nextSector += sectors;
+            }
+            header.putInt(i * 4, sector << 8 | sectors);
+            header.putInt(SECTOR_BYTES + i * 4, timestamp);
+        }
+
+        final ByteArrayOutputStream file = new ByteArrayOutputStream(rewritten.length + appended.size());
+        file.write(rewritten);
+        appended.writeTo(file);
+        writeAtomically(regionFile, file.toByteArray());
+    }
+
+    /**
+     * Writes next to the target first so a crash can't leave a half written file behind.
+     */
+    private static void writeAtomically(@NotNull Path target, byte[] data) throws IOException {
+        final Path tempFile = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+        Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return The region x and z coordinates from a file name like r.-1.2.mca, or null if the name doesn't match.
+     */
+    private static @Nullable int[] regionCoordinates(@NotNull Path regionFile) {
+        final String[] parts = regionFile.getFileName().toString().split("\\.");
+        if (parts.length != 4) return null;
+        try {
+            return new int[]{ Integer.parseInt(parts[1]), Integer.parseInt(parts[2]) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The world's day time, which is what AntiVillagerLag stored through World#getFullTime, or null if unreadable.
+     */
+    @SuppressWarnings("unchecked")
+    private static @Nullable Long readDayTime(@NotNull Path levelDat) {
+        if (!Files.isRegularFile(levelDat)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(levelDat))))) {
+            final Object data = NBT.readRoot(in).get("Data");
+            if (!(data instanceof Map)) return null;
+            final Object dayTime = ((Map<String, Object>) data).get("DayTime");
+            return dayTime instanceof Long ? (Long) dayTime : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static final class RegionReport {
+        int regions, chunks, changedRegions, changedChunks, skippedChunks, failedRegions, villagers;
+        final int[] villagersByType = new int[OptimizationType.values().length];
+
+        void add(@NotNull RegionReport other) {
+            regions += other.regions;
+            chunks += other.chunks;
+            changedRegions += other.changedRegions;
+            changedChunks += other.changedChunks;
+            skippedChunks += other.skippedChunks;
+            failedRegions += other.failedRegions;
+            villagers += other.villagers;
+            for (int i = 0; i < villagersByType.length; i++) {
+                villagersByType[i] += other.villagersByType[i];
+            }
+        }
+    }
+}
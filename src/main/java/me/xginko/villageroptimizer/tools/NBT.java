@@ -0,0 +1,156 @@
+package me.xginko.villageroptimizer.tools;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal NBT reader and writer for the offline tools, so they can run without a server on the classpath.
+ * Compounds are read as {@link LinkedHashMap}s and lists as {@link ListTag}s, all other tags as their boxed
+ * java type or array. Everything that is read can be written back unchanged.
+ */
+final class NBT {
+
+    static final byte TAG_END = 0, TAG_BYTE = 1, TAG_SHORT = 2, TAG_INT = 3, TAG_LONG = 4, TAG_FLOAT = 5,
+            TAG_DOUBLE = 6, TAG_BYTE_ARRAY = 7, TAG_STRING = 8, TAG_LIST = 9, TAG_COMPOUND = 10,
+            TAG_INT_ARRAY = 11, TAG_LONG_ARRAY = 12;
+
+    static final class ListTag {
+        final byte elementType;
+        final @NotNull List<Object> elements;
+
+        ListTag(byte elementType, @NotNull List<Object> elements) {
+            this.elementType = elementType;
+            this.elements = elements;
+        }
+    }
+
+    /**
+     * Reads a named root compound, the name is discarded.
+     */
+    static @NotNull Map<String, Object> readRoot(@NotNull DataInput in) throws IOException {
+        final byte type = in.readByte();
+        if (type != TAG_COMPOUND) throw new IOException("Root tag is not a compound but " + type);
+        in.readUTF();
+        return readCompound(in);
+    }
+
+    static void writeRoot(@NotNull DataOutput out, @NotNull Map<String, Object> root) throws IOException {
+        out.writeByte(TAG_COMPOUND);
+        out.writeUTF("");
+        writeCompound(out, root);
+    }
+
+    private static @NotNull Map<String, Object> readCompound(@NotNull DataInput in) throws IOException {
+        final Map<String, Object> compound = new LinkedHashMap<>();
+        byte type;
+        while ((type = in.readByte()) != TAG_END) {
+            final String name = in.readUTF();
+            compound.put(name, readPayload(in, type));
+        }
+        return compound;
+    }
+
+    private static Object readPayload(@NotNull DataInput in, byte type) throws IOException {
+        switch (type) {
+            case TAG_BYTE: return in.readByte();
+            case TAG_SHORT: return in.readShort();
+            case TAG_INT: return in.readInt();
+            case TAG_LONG: return in.readLong();
+            case TAG_FLOAT: return in.readFloat();
+            case TAG_DOUBLE: return in.readDouble();
+            case TAG_BYTE_ARRAY:
+                final byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            case TAG_STRING: return in.readUTF();
+            case TAG_LIST:
+                final byte elementType = in.readByte();
+                final int size = in.readInt();
+                final List<Object> elements = new ArrayList<>(Math.max(size, 0));
+                for (int i = 0; i < size; i++) {
+                    elements.add(readPayload(in, elementType));
+                }
+                return new ListTag(elementType, elements);
+            case TAG_COMPOUND: return readCompound(in);
+            case TAG_INT_ARRAY:
+                final int[] ints = new int[in.readInt()];
+                for (int i = 0; i < ints.length; i++) ints[i] = in.readInt();
+                return ints;
+            case TAG_LONG_ARRAY:
+                final long[] longs = new long[in.readInt()];
+                for (int i = 0; i < longs.length; i++) longs[i] = in.readLong();
+                return longs;
+            default:
+                throw new IOException("Unknown tag type " + type);
+        }
+    }
+
+    private static void writeCompound(@NotNull DataOutput out, @NotNull Map<String, Object> compound) throws IOException {
+        for (Map.Entry<String, Object> entry : compound.entrySet()) {
+            final byte type = typeOf(entry.getValue());
+            out.writeByte(type);
+            out.writeUTF(entry.getKey());
+            writePayload(out, type, entry.getValue());
+        }
+        out.writeByte(TAG_END);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writePayload(@NotNull DataOutput out, byte type, Object value) throws IOException {
+        switch (type) {
+            case TAG_BYTE: out.writeByte((Byte) value); break;
+            case TAG_SHORT: out.writeShort((Short) value); break;
+            case TAG_INT: out.writeInt((Integer) value); break;
+            case TAG_LONG: out.writeLong((Long) value); break;
+            case TAG_FLOAT: out.writeFloat((Float) value); break;
+            case TAG_DOUBLE: out.writeDouble((Double) value); break;
+            case TAG_BYTE_ARRAY:
+                out.writeInt(((byte[]) value).length);
+                out.write((byte[]) value);
+                break;
+            case TAG_STRING: out.writeUTF((String) value); break;
+            case TAG_LIST:
+                final ListTag list = (ListTag) value;
+                out.writeByte(list.elements.isEmpty() ? TAG_END : list.elementType);
+                out.writeInt(list.elements.size());
+                for (Object element : list.elements) {
+                    writePayload(out, list.elementType, element);
+                }
+                break;
+            case TAG_COMPOUND: writeCompound(out, (Map<String, Object>) value); break;
+            case TAG_INT_ARRAY:
+                out.writeInt(((int[]) value).length);
+                for (int i : (int[]) value) out.writeInt(i);
+                break;
+            case TAG_LONG_ARRAY:
+                out.writeInt(((long[]) value).length);
+                for (long l : (long[]) value) out.writeLong(l);
+                break;
+            default:
+                throw new IOException("Unknown tag type " + type);
+        }
+    }
+
+    private static byte typeOf(Object value) throws IOException {
+        if (value instanceof Byte) return TAG_BYTE;
+        if (value instanceof Short) return TAG_SHORT;
+        if (value instanceof Integer) return TAG_INT;
+        if (value instanceof Long) return TAG_LONG;
+        if (value instanceof Float) return TAG_FLOAT;
+        if (value instanceof Double) return TAG_DOUBLE;
+        if (value instanceof byte[]) return TAG_BYTE_ARRAY;
+        if (value instanceof String) return TAG_STRING;
+        if (value instanceof ListTag) return TAG_LIST;
+        if (value instanceof Map) return TAG_COMPOUND;
+        if (value instanceof int[]) return TAG_INT_ARRAY;
+        if (value instanceof long[]) return TAG_LONG_ARRAY;
+        throw new IOException("Unsupported value " + value.getClass().getName());
+    }
+}
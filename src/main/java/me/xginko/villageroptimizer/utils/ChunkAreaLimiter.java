@@ -0,0 +1,262 @@
+package me.xginko.villageroptimizer.utils;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds square windows of chunks that hold more villagers than allowed and decides how many villagers
+ * to remove from which chunk, taking from the fullest chunks of a window first.
+ * <p>
+ * Chunks are grouped into clusters that no single window can span. Each cluster gets a two-dimensional
+ * Fenwick tree, an updatable summed-area table, so every window is summed in logarithmic time and removals
+ * are reflected in all overlapping windows without having to rescan them.
+ */
+public final class ChunkAreaLimiter {
+
+    // Clusters spread out further than this fall back to summing windows chunk by chunk
+    private static final long MAX_DENSE_CELLS = 1 << 18;
+
+    @FunctionalInterface
+    public interface Removal {
+        void remove(int chunkX, int chunkZ, int amount);
+    }
+
+    /**
+     * @param counts       Villager counts by packed chunk key, as returned by {@link org.bukkit.Chunk#getChunkKey()}.
+     * @param windowSize   Width and length of a window in chunks.
+     * @param maxPerWindow Maximum amount of villagers in any window.
+     * @param removal      Receives how many villagers to remove from which chunk.
+     */
+    public static void enforce(@NotNull Long2IntMap counts, int windowSize, int maxPerWindow, @NotNull Removal removal) {
+        final long[] chunkKeys = counts.long2IntEntrySet().stream()
+                .filter(entry -> entry.getIntValue() > 0)
+                .mapToLong(Long2IntMap.Entry::getLongKey)
+                .toArray();
+
+        for (int[] cluster : clusters(chunkKeys, windowSize)) {
+            enforceCluster(chunkKeys, cluster, counts, windowSize, maxPerWindow, removal);
+        }
+    }
+
+    private static void enforceCluster(
+            long[] chunkKeys, int[] cluster, Long2IntMap counts, int windowSize, int maxPerWindow, Removal removal
+    ) {
+        int minX = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        for (int i : cluster) {
+            minX = Math.min(minX, chunkX(chunkKeys[i]));
+            minZ = Math.min(minZ, chunkZ(chunkKeys[i]));
+            maxX = Math.max(maxX, chunkX(chunkKeys[i]));
+            maxZ = Math.max(maxZ, chunkZ(chunkKeys[i]));
+        }
+
+        final long width = (long) maxX - minX + 1, length = (long) maxZ - minZ + 1;
+        final Grid grid = width * length <= MAX_DENSE_CELLS ?
+                new FenwickGrid(minX, minZ, (int) width, (int) length) : new SparseGrid();
+        for (int i : cluster) {
+            grid.add(chunkX(chunkKeys[i]), chunkZ(chunkKeys[i]), counts.get(chunkKeys[i]));
+        }
+
+        // Every window that contains at least one chunk of the cluster, each checked once
+        final LongOpenHashSet checkedWindows = new LongOpenHashSet();
+        for (int i : cluster) {
+            final int x = chunkX(chunkKeys[i]), z = chunkZ(chunkKeys[i]);
+            for (int windowX = x - windowSize + 1; windowX <= x; windowX++) {
+                for (int windowZ = z - windowSize + 1; windowZ <= z; windowZ++) {
+                    if (!checkedWindows.add(chunkKey(windowX, windowZ))) continue;
+                    trimWindow(grid, windowX, windowZ, windowSize, maxPerWindow, removal);
+                }
+            }
+        }
+    }
+
+    private static void trimWindow(Grid grid, int windowX, int windowZ, int windowSize, int maxPerWindow, Removal removal) {
+        long excess = grid.sum(windowX, windowZ, windowX + windowSize - 1, windowZ + windowSize - 1) - maxPerWindow;
+        while (excess > 0) {
+            int fullestX = windowX, fullestZ = windowZ, fullestCount = 0;
+            for (int x = windowX; x < windowX + windowSize; x++) {
+                for (int z = windowZ; z < windowZ + windowSize; z++) {
+                    final int count = grid.get(x, z);
+                    if (count > fullestCount) {
+                        fullestX = x;
+                        fullestZ = z;
+                        fullestCount = count;
+                    }
+                }
+            }
+            final int amount = (int) Math.min(excess, fullestCount);
+            grid.add(fullestX, fullestZ, -amount);
+            removal.remove(fullestX, fullestZ, amount);
+            excess -= amount;
+        }
+    }
+
+    /**
+     * Groups chunks that are close enough to share a window, using a union-find over a grid of window sized cells.
+     */
+    private static @NotNull List<int[]> clusters(long[] chunkKeys, int windowSize) {
+        final int[] parents = new int[chunkKeys.length];
+        final Long2ObjectOpenHashMap<IntArrayList> cells = new Long2ObjectOpenHashMap<>();
+        for (int i = 0; i < chunkKeys.length; i++) {
+            parents[i] = i;
+            final long cellKey = cellKey(chunkKeys[i], windowSize);
+            IntArrayList cell = cells.get(cellKey);
+            if (cell == null) {
+                cell = new IntArrayList();
+                cells.put(cellKey, cell);
+            }
+            cell.add(i);
+        }
+
+        for (int i = 0; i < chunkKeys.length; i++) {
+            final int cellX = Math.floorDiv(chunkX(chunkKeys[i]), windowSize), cellZ = Math.floorDiv(chunkZ(chunkKeys[i]), windowSize);
+            for (int offsetX = -1; offsetX <= 1; offsetX++) {
+                for (int offsetZ = -1; offsetZ <= 1; offsetZ++) {
+                    final IntArrayList cell = cells.get(chunkKey(cellX + offsetX, cellZ + offsetZ));
+                    if (cell == null) continue;
+                    for (int c = 0; c < cell.size(); c++) {
+                        final int j = cell.getInt(c);
+                        if (j > i && Math.max(
+                                Math.abs(chunkX(chunkKeys[i]) - chunkX(chunkKeys[j])),
+                                Math.abs(chunkZ(chunkKeys[i]) - chunkZ(chunkKeys[j]))) < windowSize) {
+                            parents[find(parents, i)] = find(parents, j);
+                        }
+                    }
+                }
+            }
+        }
+
+        final Int2ObjectOpenHashMap<IntArrayList> clusters = new Int2ObjectOpenHashMap<>();
+        for (int i = 0; i < chunkKeys.length; i++) {
+            final int root = find(parents, i);
+            IntArrayList cluster = clusters.get(root);
+            if (cluster == null) {
+                cluster = new IntArrayList();
+                clusters.put(root, cluster);
+            }
+            cluster.add(i);
+        }
+        final List<int[]> result = new ArrayList<>(clusters.size());
+        for (IntArrayList cluster : clusters.values()) {
+            result.add(cluster.toIntArray());
+        }
+        return result;
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    private static long cellKey(long chunkKey, int windowSize) {
+        return chunkKey(Math.floorDiv(chunkX(chunkKey), windowSize), Math.floorDiv(chunkZ(chunkKey), windowSize));
+    }
+
+    private static long chunkKey(int x, int z) {
+        return (long) x & 0xffffffffL | ((long) z & 0xffffffffL) << 32;
+    }
+
+    private static int chunkX(long chunkKey) {
+        return (int) chunkKey;
+    }
+
+    private static int chunkZ(long chunkKey) {
+        return (int) (chunkKey >> 32);
+    }
+
+    private interface Grid {
+        int get(int x, int z);
+        void add(int x, int z, int delta);
+        long sum(int fromX, int fromZ, int toX, int toZ);
+    }
+
+    private static final class FenwickGrid implements Grid {
+        private final int originX, originZ, width, length;
+        private final int[] values;
+        private final long[] tree;
+
+        private FenwickGrid(int originX, int originZ, int width, int length) {
+            this.originX = originX;
+            this.originZ = originZ;
+            this.width = width;
+            this.length = length;
+            this.values = new int[width * length];
+            this.tree = new long[(width + 1) * (length + 1)];
+        }
+
+        @Override
+        public int get(int x, int z) {
+            x -= originX;
+            z -= originZ;
+            if (x < 0 || z < 0 || x >= width || z >= length) return 0;
+            return values[x * length + z];
+        }
+
+        @Override
+        public void add(int x, int z, int delta) {
+            x -= originX;
+            z -= originZ;
+            values[x * length + z] += delta;
+            for (int i = x + 1; i <= width; i += i & -i) {
+                for (int j = z + 1; j <= length; j += j & -j) {
+                    tree[i * (length + 1) + j] += delta;
+                }
+            }
+        }
+
+        @Override
+        public long sum(int fromX, int fromZ, int toX, int toZ) {
+            fromX = Math.max(fromX - originX, 0);
+            fromZ = Math.max(fromZ - originZ, 0);
+            toX = Math.min(toX - originX, width - 1);
+            toZ = Math.min(toZ - originZ, length - 1);
+            if (fromX > toX || fromZ > toZ) return 0L;
+            return prefix(toX + 1, toZ + 1) - prefix(fromX, toZ + 1) - prefix(toX + 1, fromZ) + prefix(fromX, fromZ);
+        }
+
+        private long prefix(int x, int z) {
+            long sum = 0L;
+            for (int i = x; i > 0; i -= i & -i) {
+                for (int j = z; j > 0; j -= j & -j) {
+                    sum += tree[i * (length + 1) + j];
+                }
+            }
+            return sum;
+        }
+    }
+
+    private static final class SparseGrid implements Grid {
+        private final Long2IntOpenHashMap values = new Long2IntOpenHashMap();
+
+        @Override
+        public int get(int x, int z) {
+            return values.get(chunkKey(x, z));
+        }
+
+        @Override
+        public void add(int x, int z, int delta) {
+            values.addTo(chunkKey(x, z), delta);
+        }
+
+        @Override
+        public long sum(int fromX, int fromZ, int toX, int toZ) {
+            long sum = 0L;
+            for (int x = fromX; x <= toX; x++) {
+                for (int z = fromZ; z <= toZ; z++) {
+                    sum += get(x, z);
+                }
+            }
+            return sum;
+        }
+    }
+}
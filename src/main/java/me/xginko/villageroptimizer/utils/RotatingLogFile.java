@@ -0,0 +1,134 @@
+package me.xginko.villageroptimizer.utils;
+
+import me.xginko.villageroptimizer.VillagerOptimizer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Writes lines to a log file on a separate thread, so logging doesn't cost any time on the server threads.
+ * Once the file exceeds its maximum size, it is renamed to name.1.log, older files are shifted by one and
+ * the oldest file is deleted.
+ */
+public final class RotatingLogFile {
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final long CLOSE_WAIT_MILLIS = 250L;
+
+    private final @NotNull File directory;
+    private final @NotNull String name;
+    private final long max_bytes;
+    private final int max_files;
+    private final @NotNull ExecutorService writer;
+    private BufferedWriter output;
+    private long written_bytes;
+    private volatile boolean closed;
+
+    public RotatingLogFile(@NotNull File directory, @NotNull String name, long max_bytes, int max_files) {
+        this.directory = directory;
+        this.name = name;
+        this.max_bytes = Math.max(1024, max_bytes);
+        this.max_files = Math.max(1, max_files);
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "VillagerOptimizer " + name + " log");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a line to be written. The line is only built on the writer thread.
+     * Lines logged after the file was closed are dropped.
+     */
+    public void log(@NotNull Supplier<String> line) {
+        if (closed) return;
+        final LocalDateTime time = LocalDateTime.now();
+        try {
+            writer.execute(() -> write("[" + TIME_FORMAT.format(time) + "] " + line.get()));
+        } catch (RejectedExecutionException ignored) {
+            // Closed while this line was being queued
+        }
+    }
+
+    /**
+     * Closes the file once all queued lines are written. Only waits a short moment for the writer thread,
+     * lines that are still queued afterwards keep being written in the background.
+     */
+    public void close() {
+        if (closed) return;
+        this.closed = true;
+        try {
+            writer.execute(this::closeOutput);
+        } catch (RejectedExecutionException ignored) {
+            return;
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(CLOSE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(@NotNull String line) {
+        try {
+            if (output == null) {
+                open();
+            } else if (written_bytes >= max_bytes) {
+                closeOutput();
+                rotate();
+                open();
+            }
+            output.write(line);
+            output.newLine();
+            output.flush();
+            written_bytes += line.length() + 1;
+        } catch (IOException e) {
+            VillagerOptimizer.getPrefixedLogger().warn("Failed writing to log file {}.log - {}", name, e.getLocalizedMessage());
+            closeOutput();
+        }
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(directory.toPath());
+        final File file = file(0);
+        this.written_bytes = file.length();
+        this.output = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private void rotate() throws IOException {
+        Files.deleteIfExists(file(max_files).toPath());
+        for (int i = max_files - 1; i >= 0; i--) {
+            if (file(i).exists()) {
+                Files.move(file(i).toPath(), file(i + 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private void closeOutput() {
+        if (output == null) return;
+        try {
+            output.close();
+        } catch (IOException ignored) {
+        }
+        this.output = null;
+    }
+
+    private @NotNull File file(int index) {
+        return new File(directory, index == 0 ? name + ".log" : name + "." + index + ".log");
+    }
+}
@@ -0,0 +1,154 @@
+package me.xginko.villageroptimizer.utils;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import me.xginko.villageroptimizer.VillagerOptimizer;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Material;
+import org.bukkit.Tag;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.util.BoundingBox;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Caches which blocks of a chunk section stop a villager from walking through them, as one bit per block.
+ * Sections are read from the world the first time they are queried and again once they are older than the
+ * maximum age, so block changes that are not invalidated explicitly, like those made by other plugins,
+ * are picked up eventually.
+ */
+public final class SectionOccupancyCache {
+
+    public static final int UNKNOWN = -1, FREE = 0, BLOCKED = 1, TALL = 2;
+
+    private final @NotNull Map<UUID, Long2ObjectOpenHashMap<Section[]>> worlds = new HashMap<>();
+    private final long max_age_millis;
+
+    public SectionOccupancyCache(long max_age_millis) {
+        this.max_age_millis = max_age_millis;
+    }
+
+    private static final class Section {
+        private final @NotNull long[] blocked;
+        // Blocks with a collision height above one block, like fences and walls. Null if there are none.
+        private final @Nullable long[] tall;
+        private final long readAt;
+
+        private Section(@NotNull long[] blocked, @Nullable long[] tall, long readAt) {
+            this.blocked = blocked;
+            this.tall = tall;
+            this.readAt = readAt;
+        }
+    }
+
+    /**
+     * Needs to be called on the thread that owns the block's chunk.
+     *
+     * @return {@link #TALL} if a villager can neither walk through the block nor jump on it,
+     *         {@link #BLOCKED} if it can't walk through the block, {@link #FREE} if it can,
+     *         or {@link #UNKNOWN} if the block can't be read right now.
+     */
+    public int occupancy(@NotNull World world, int x, int y, int z) {
+        if (y < world.getMinHeight()) return BLOCKED;
+        if (y >= world.getMaxHeight()) return FREE;
+        final Section section = section(world, x >> 4, (y - world.getMinHeight()) >> 4, z >> 4);
+        if (section == null) return UNKNOWN;
+        final int index = (y & 15) << 8 | (z & 15) << 4 | (x & 15);
+        if ((section.blocked[index >>> 6] & 1L << index) == 0L) return FREE;
+        return section.tall != null && (section.tall[index >>> 6] & 1L << index) != 0L ? TALL : BLOCKED;
+    }
+
+    private @Nullable Section section(@NotNull World world, int chunkX, int sectionIndex, int chunkZ) {
+        if (!world.isChunkLoaded(chunkX, chunkZ)) return null;
+        // Neighbouring chunks can belong to another region on Folia
+        if (VillagerOptimizer.getFoliaLib().isFolia() && !Bukkit.isOwnedByCurrentRegion(world, chunkX, chunkZ)) return null;
+
+        final long chunkKey = Chunk.getChunkKey(chunkX, chunkZ);
+        final long now = System.currentTimeMillis();
+        synchronized (worlds) {
+            final Long2ObjectOpenHashMap<Section[]> chunks = worlds.get(world.getUID());
+            final Section[] sections = chunks == null ? null : chunks.get(chunkKey);
+            if (sections != null && sections[sectionIndex] != null && now - sections[sectionIndex].readAt < max_age_millis) {
+                return sections[sectionIndex];
+            }
+        }
+
+        // Read without holding the lock, so other regions don't have to wait for it
+        final Section section = readSection(world, chunkX, sectionIndex, chunkZ, now);
+        synchronized (worlds) {
+            Long2ObjectOpenHashMap<Section[]> chunks = worlds.get(world.getUID());
+            if (chunks == null) {
+                chunks = new Long2ObjectOpenHashMap<>();
+                worlds.put(world.getUID(), chunks);
+            }
+            Section[] sections = chunks.get(chunkKey);
+            if (sections == null) {
+                sections = new Section[(world.getMaxHeight() - world.getMinHeight() + 15) >> 4];
+                chunks.put(chunkKey, sections);
+            }
+            sections[sectionIndex] = section;
+        }
+        return section;
+    }
+
+    private static @NotNull Section readSection(@NotNull World world, int chunkX, int sectionIndex, int chunkZ, long now) {
+        final long[] blocked = new long[64];
+        long[] tall = null;
+        final int minX = chunkX << 4, minY = world.getMinHeight() + (sectionIndex << 4), minZ = chunkZ << 4;
+        for (int index = 0; index < 4096; index++) {
+            final Block block = world.getBlockAt(minX + (index & 15), minY + (index >>> 8), minZ + (index >>> 4 & 15));
+            final Material type = block.getType();
+            // Villagers open wooden doors on their own
+            if (block.isPassable() || Tag.WOODEN_DOORS.isTagged(type)) continue;
+            blocked[index >>> 6] |= 1L << index;
+            // Full cubes can't be taller than one block, so only other shapes need to be looked at
+            if (!type.isOccluding() && isTall(block)) {
+                if (tall == null) tall = new long[64];
+                tall[index >>> 6] |= 1L << index;
+            }
+        }
+        return new Section(blocked, tall, now);
+    }
+
+    private static boolean isTall(@NotNull Block block) {
+        for (BoundingBox box : block.getCollisionShape().getBoundingBoxes()) {
+            if (box.getMaxY() > 1.0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the section of the block, so it is read again the next time it is queried.
+     */
+    public void invalidate(@NotNull Block block) {
+        final World world = block.getWorld();
+        synchronized (worlds) {
+            final Long2ObjectOpenHashMap<Section[]> chunks = worlds.get(world.getUID());
+            if (chunks == null) return;
+            final Section[] sections = chunks.get(Chunk.getChunkKey(block.getX() >> 4, block.getZ() >> 4));
+            if (sections == null) return;
+            final int sectionIndex = (block.getY() - world.getMinHeight()) >> 4;
+            if (sectionIndex >= 0 && sectionIndex < sections.length) sections[sectionIndex] = null;
+        }
+    }
+
+    public void drop(@NotNull World world, int chunkX, int chunkZ) {
+        synchronized (worlds) {
+            final Long2ObjectOpenHashMap<Section[]> chunks = worlds.get(world.getUID());
+            if (chunks == null) return;
+            chunks.remove(Chunk.getChunkKey(chunkX, chunkZ));
+            if (chunks.isEmpty()) worlds.remove(world.getUID());
+        }
+    }
+
+    public void clear() {
+        synchronized (worlds) {
+            worlds.clear();
+        }
+    }
+}
@@ -1,9 +1,7 @@
 package me.xginko.villageroptimizer.wrapper;
 
-import me.xginko.villageroptimizer.VillagerOptimizer;
 import me.xginko.villageroptimizer.enums.Keyring;
 import me.xginko.villageroptimizer.enums.OptimizationType;
-import org.bukkit.entity.Villager;
 import org.bukkit.persistence.PersistentDataContainer;
 import org.bukkit.persistence.PersistentDataType;
 import org.jetbrains.annotations.NotNull;
@@ -12,12 +10,74 @@ import java.util.concurrent.TimeUnit;
 
 public class AVLVillagerDataHandlerImpl implements VillagerDataHandler {
 
-    private final @NotNull Villager villager;
+    private final @NotNull WrappedVillager wrappedVillager;
     private final @NotNull PersistentDataContainer dataContainer;
 
-    AVLVillagerDataHandlerImpl(@NotNull Villager villager) {
-        this.villager = villager;
-        this.dataContainer = villager.getPersistentDataContainer();
+    AVLVillagerDataHandlerImpl(@NotNull WrappedVillager wrappedVillager) {
+        this.wrappedVillager = wrappedVillager;
+        this.dataContainer = wrappedVillager.villager().getPersistentDataContainer();
+    }
+
+    /**
+     * Converts all AntiVillagerLag data of the villager into VillagerOptimizer data and strips the AntiVillagerLag keys,
+     * so the villager no longer needs this handler. Existing VillagerOptimizer data takes precedence.
+     *
+     * @return True if the villager had any AntiVillagerLag data that was migrated.
+     */
+    boolean migrateToVillagerOptimizer() {
+        final OptimizationType avlType = getOptimizationType();
+        final long now = System.currentTimeMillis();
+        // AntiVillagerLag stores when the next action is allowed, we store when the last one happened.
+        // The closest equivalent is to treat the stored time as the last action, but never later than now.
+        final long lastOptimize = readSecondsAsMillis(Keyring.AntiVillagerLag.NEXT_OPTIMIZATION_SYSTIME_SECONDS, now);
+        final long lastLevelUp = readSecondsAsMillis(Keyring.AntiVillagerLag.NEXT_LEVELUP_SYSTIME_SECONDS, now);
+        long lastRestock = 0L;
+        if (dataContainer.has(Keyring.AntiVillagerLag.LAST_RESTOCK_WORLDFULLTIME.getKey(), PersistentDataType.LONG)) {
+            final long ticksSinceRestock = wrappedVillager.villager().getWorld().getFullTime()
+                    - dataContainer.get(Keyring.AntiVillagerLag.LAST_RESTOCK_WORLDFULLTIME.getKey(), PersistentDataType.LONG);
+            lastRestock = now - Math.max(0L, ticksSinceRestock) * 50L;
+        }
+
+        if (avlType == OptimizationType.NONE && lastOptimize == 0L && lastLevelUp == 0L && lastRestock == 0L) {
+            return false;
+        }
+
+        final VillagerDataRecord record = VillagerDataRecord.read(dataContainer);
+        if (record != null) {
+            new VillagerDataRecord(
+                    record.optimizationType != OptimizationType.NONE ? record.optimizationType : avlType,
+                    Math.max(record.lastOptimize, lastOptimize),
+                    Math.max(record.lastRestock, lastRestock),
+                    Math.max(record.lastLevelUp, lastLevelUp)
+            ).write(dataContainer);
+        } else {
+            if (
+                    avlType != OptimizationType.NONE
+                    && !dataContainer.has(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.BYTE)
+                    && !dataContainer.has(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.STRING)
+            ) {
+                dataContainer.set(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.BYTE, avlType.code());
+            }
+            writeIfLater(Keyring.VillagerOptimizer.LAST_OPTIMIZE_SYSTIME_MILLIS, lastOptimize);
+            writeIfLater(Keyring.VillagerOptimizer.LAST_RESTOCK_SYSTIME_MILLIS, lastRestock);
+            writeIfLater(Keyring.VillagerOptimizer.LAST_LEVELUP_SYSTIME_MILLIS, lastLevelUp);
+        }
+
+        for (Keyring.AntiVillagerLag avlKey : Keyring.AntiVillagerLag.values()) {
+            dataContainer.remove(avlKey.getKey());
+        }
+        return true;
+    }
+
+    private long readSecondsAsMillis(@NotNull Keyring.AntiVillagerLag avlKey, long now) {
+        if (!dataContainer.has(avlKey.getKey(), PersistentDataType.LONG)) return 0L;
+        return Math.min(now, TimeUnit.SECONDS.toMillis(dataContainer.get(avlKey.getKey(), PersistentDataType.LONG)));
+    }
+
+    private void writeIfLater(@NotNull Keyring.VillagerOptimizer key, long millis) {
+        if (millis == 0L) return;
+        if (dataContainer.has(key.getKey(), PersistentDataType.LONG) && dataContainer.get(key.getKey(), PersistentDataType.LONG) >= millis) return;
+        dataContainer.set(key.getKey(), PersistentDataType.LONG, millis);
     }
 
     @Override
@@ -40,40 +100,32 @@ public class AVLVillagerDataHandlerImpl implements VillagerDataHandler {
 
     @Override
     public void setOptimizationType(OptimizationType type) {
-        VillagerOptimizer.getFoliaLib().getImpl().runAtEntityTimer(villager, setOptimization -> {
-            // Keep repeating task until villager is no longer trading with a player
-            if (villager.isTrading()) return;
-
-            if (type == OptimizationType.NONE) {
-                if (dataContainer.has(Keyring.AntiVillagerLag.OPTIMIZED_ANY.getKey(), PersistentDataType.STRING))
-                    dataContainer.remove(Keyring.AntiVillagerLag.OPTIMIZED_ANY.getKey());
-                if (dataContainer.has(Keyring.AntiVillagerLag.OPTIMIZED_WORKSTATION.getKey(), PersistentDataType.STRING))
-                    dataContainer.remove(Keyring.AntiVillagerLag.OPTIMIZED_WORKSTATION.getKey());
-                if (dataContainer.has(Keyring.AntiVillagerLag.OPTIMIZED_BLOCK.getKey(), PersistentDataType.STRING))
-                    dataContainer.remove(Keyring.AntiVillagerLag.OPTIMIZED_BLOCK.getKey());
-
-                villager.setAware(true);
-                villager.setAI(true);
-            } else {
-                switch (type) {
-                    case BLOCK:
-                        dataContainer.set(Keyring.AntiVillagerLag.OPTIMIZED_BLOCK.getKey(), PersistentDataType.STRING, Keyring.AntiVillagerLag.OPTIMIZED_BLOCK.getKey().toString());
-                        break;
-                    case WORKSTATION:
-                        dataContainer.set(Keyring.AntiVillagerLag.OPTIMIZED_WORKSTATION.getKey(), PersistentDataType.STRING, Keyring.AntiVillagerLag.OPTIMIZED_WORKSTATION.getKey().toString());
-                        break;
-                    case COMMAND:
-                    case NAMETAG:
-                        dataContainer.set(Keyring.AntiVillagerLag.OPTIMIZED_ANY.getKey(), PersistentDataType.STRING, "AVL");
-                        break;
-                }
-
-                villager.setAware(false);
+        if (type == OptimizationType.NONE) {
+            if (dataContainer.has(Keyring.AntiVillagerLag.OPTIMIZED_ANY.getKey(), PersistentDataType.STRING))
+                dataContainer.remove(Keyring.AntiVillagerLag.OPTIMIZED_ANY.getKey());
+            if (dataContainer.has(Keyring.AntiVillagerLag.OPTIMIZED_WORKSTATION.getKey(), PersistentDataType.STRING))
+                dataContainer.remove(Keyring.AntiVillagerLag.OPTIMIZED_WORKSTATION.getKey());
+            if (dataContainer.has(Keyring.AntiVillagerLag.OPTIMIZED_BLOCK.getKey(), PersistentDataType.STRING))
+                dataContainer.remove(Keyring.AntiVillagerLag.OPTIMIZED_BLOCK.getKey());
+        } else {
+            switch (type) {
+                case BLOCK:
+                    dataContainer.set(Keyring.AntiVillagerLag.OPTIMIZED_BLOCK.getKey(), PersistentDataType.STRING, Keyring.AntiVillagerLag.OPTIMIZED_BLOCK.getKey().toString());
+                    break;
+                case WORKSTATION:
+                    dataContainer.set(Keyring.AntiVillagerLag.OPTIMIZED_WORKSTATION.getKey(), PersistentDataType.STRING, Keyring.AntiVillagerLag.OPTIMIZED_WORKSTATION.getKey().toString());
+                    break;
+                case COMMAND:
+                case NAMETAG:
+                    dataContainer.set(Keyring.AntiVillagerLag.OPTIMIZED_ANY.getKey(), PersistentDataType.STRING, "AVL");
+                    break;
+                case AUTOMATIC:
+                case THROTTLED:
+                case CONFINED:
+                    // AVL can't represent these and would disable the villager's AI for good
+                    break;
             }
-
-            // End repeating task once logic is finished
-            setOptimization.cancel();
-        }, 0L, 1L, TimeUnit.SECONDS);
+        }
     }
 
     @Override
@@ -107,18 +159,18 @@ public class AVLVillagerDataHandlerImpl implements VillagerDataHandler {
     @Override
     public boolean canRestock(long cooldown_millis) {
         return !dataContainer.has(Keyring.AntiVillagerLag.LAST_RESTOCK_WORLDFULLTIME.getKey(), PersistentDataType.LONG)
-                || villager.getWorld().getFullTime() > dataContainer.get(Keyring.AntiVillagerLag.LAST_RESTOCK_WORLDFULLTIME.getKey(), PersistentDataType.LONG);
+                || wrappedVillager.villager().getWorld().getFullTime() > dataContainer.get(Keyring.AntiVillagerLag.LAST_RESTOCK_WORLDFULLTIME.getKey(), PersistentDataType.LONG);
     }
 
     @Override
     public void saveRestockTime() {
-        dataContainer.set(Keyring.AntiVillagerLag.LAST_RESTOCK_WORLDFULLTIME.getKey(), PersistentDataType.LONG, villager.getWorld().getFullTime());
+        dataContainer.set(Keyring.AntiVillagerLag.LAST_RESTOCK_WORLDFULLTIME.getKey(), PersistentDataType.LONG, wrappedVillager.villager().getWorld().getFullTime());
     }
 
     @Override
     public long getRestockCooldownMillis(long cooldown_millis) {
         if (dataContainer.has(Keyring.AntiVillagerLag.LAST_RESTOCK_WORLDFULLTIME.getKey(), PersistentDataType.LONG))
-            return (villager.getWorld().getFullTime() - dataContainer.get(Keyring.AntiVillagerLag.LAST_RESTOCK_WORLDFULLTIME.getKey(), PersistentDataType.LONG)) * 50L;
+            return (wrappedVillager.villager().getWorld().getFullTime() - dataContainer.get(Keyring.AntiVillagerLag.LAST_RESTOCK_WORLDFULLTIME.getKey(), PersistentDataType.LONG)) * 50L;
         return cooldown_millis;
     }
 
@@ -1,23 +1,37 @@
 package me.xginko.villageroptimizer.wrapper;
 
-import me.xginko.villageroptimizer.VillagerOptimizer;
 import me.xginko.villageroptimizer.enums.Keyring;
 import me.xginko.villageroptimizer.enums.OptimizationType;
-import org.bukkit.entity.Villager;
 import org.bukkit.persistence.PersistentDataContainer;
 import org.bukkit.persistence.PersistentDataType;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.concurrent.TimeUnit;
-
 public class MainVillagerDataHandlerImpl implements VillagerDataHandler {
 
-    private final @NotNull Villager villager;
+    private final @NotNull WrappedVillager wrappedVillager;
     private final @NotNull PersistentDataContainer dataContainer;
 
-    MainVillagerDataHandlerImpl(@NotNull Villager villager) {
-        this.villager = villager;
-        this.dataContainer = villager.getPersistentDataContainer();
+    MainVillagerDataHandlerImpl(@NotNull WrappedVillager wrappedVillager) {
+        this.wrappedVillager = wrappedVillager;
+        this.dataContainer = wrappedVillager.villager().getPersistentDataContainer();
+        this.expandCompactRecord();
+    }
+
+    /**
+     * This handler reads the separate keys directly, so data stored in the compact format is moved back to them.
+     */
+    private void expandCompactRecord() {
+        final VillagerDataRecord record = VillagerDataRecord.read(dataContainer);
+        if (record == null) return;
+        if (record.optimizationType != OptimizationType.NONE)
+            dataContainer.set(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.BYTE, record.optimizationType.code());
+        if (record.lastOptimize != 0L)
+            dataContainer.set(Keyring.VillagerOptimizer.LAST_OPTIMIZE_SYSTIME_MILLIS.getKey(), PersistentDataType.LONG, record.lastOptimize);
+        if (record.lastRestock != 0L)
+            dataContainer.set(Keyring.VillagerOptimizer.LAST_RESTOCK_SYSTIME_MILLIS.getKey(), PersistentDataType.LONG, record.lastRestock);
+        if (record.lastLevelUp != 0L)
+            dataContainer.set(Keyring.VillagerOptimizer.LAST_LEVELUP_SYSTIME_MILLIS.getKey(), PersistentDataType.LONG, record.lastLevelUp);
+        VillagerDataRecord.remove(dataContainer);
     }
 
     @Override
@@ -27,7 +41,8 @@ public class MainVillagerDataHandlerImpl implements VillagerDataHandler {
 
     @Override
     public boolean isOptimized() {
-        return dataContainer.has(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.STRING);
+        return dataContainer.has(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.BYTE)
+                || dataContainer.has(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.STRING);
     }
 
     @Override
@@ -37,32 +52,30 @@ public class MainVillagerDataHandlerImpl implements VillagerDataHandler {
 
     @Override
     public void setOptimizationType(OptimizationType type) {
-        VillagerOptimizer.getFoliaLib().getImpl().runAtEntityTimer(villager, setOptimization -> {
-            // Keep repeating task until villager is no longer trading with a player
-            if (villager.isTrading()) return;
-
-            if (type == OptimizationType.NONE) {
-                if (isOptimized())
-                    dataContainer.remove(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey());
-                villager.setAware(true);
-                villager.setAI(true);
-            } else {
-                dataContainer.set(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.STRING, type.name());
-                villager.setAware(false);
-            }
-
-            // End repeating task once logic is finished
-            setOptimization.cancel();
-        }, 0L, 1L, TimeUnit.SECONDS);
+        if (type == OptimizationType.NONE) {
+            if (isOptimized())
+                dataContainer.remove(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey());
+        } else {
+            dataContainer.set(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.BYTE, type.code());
+        }
     }
 
     @Override
     public @NotNull OptimizationType getOptimizationType() {
-        if (!isOptimized()) {
-            return OptimizationType.valueOf(dataContainer.get(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.STRING));
-        } else {
+        if (dataContainer.has(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.BYTE)) {
+            return OptimizationType.fromCode(dataContainer.get(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.BYTE));
+        }
+
+        // Versions before byte codes stored the type name. It is kept until the type changes, so downgrading still works.
+        if (!dataContainer.has(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.STRING)) {
             return OptimizationType.NONE;
         }
+        final String storedType = dataContainer.get(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.STRING);
+        try {
+            return OptimizationType.valueOf(storedType);
+        } catch (IllegalArgumentException e) {
+            return OptimizationType.COMMAND; // Has the key, so it is optimized. Best we can do
+        }
     }
 
     @Override
@@ -0,0 +1,189 @@
+package me.xginko.villageroptimizer.wrapper;
+
+import me.xginko.villageroptimizer.VillagerOptimizer;
+import me.xginko.villageroptimizer.enums.Keyring;
+import me.xginko.villageroptimizer.enums.OptimizationType;
+import org.bukkit.persistence.PersistentDataContainer;
+import org.bukkit.persistence.PersistentDataType;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Reads the villager's data once on creation and serves every read from memory.
+ * Changes are written through to the {@link PersistentDataContainer} so the data survives restarts.
+ * Call {@link #resync()} if another plugin modified the container directly.
+ * If compact villager data is enabled, all values are stored in a single {@link VillagerDataRecord}
+ * and villagers still using the separate keys are migrated the first time they are read.
+ */
+public class SnapshotVillagerDataHandlerImpl implements VillagerDataHandler {
+
+    private final @NotNull WrappedVillager wrappedVillager;
+    private final @NotNull PersistentDataContainer dataContainer;
+    private volatile @NotNull OptimizationType optimizationType;
+    private volatile long lastOptimize, lastRestock, lastLevelUp;
+    private final boolean compact;
+
+    SnapshotVillagerDataHandlerImpl(@NotNull WrappedVillager wrappedVillager) {
+        this.wrappedVillager = wrappedVillager;
+        this.dataContainer = wrappedVillager.villager().getPersistentDataContainer();
+        this.compact = VillagerOptimizer.getConfiguration().compact_villager_data;
+        this.optimizationType = OptimizationType.NONE;
+        this.resync();
+    }
+
+    @Override
+    public void resync() {
+        final VillagerDataRecord record = VillagerDataRecord.read(dataContainer);
+
+        if (record != null) {
+            this.optimizationType = record.optimizationType;
+            this.lastOptimize = record.lastOptimize;
+            this.lastRestock = record.lastRestock;
+            this.lastLevelUp = record.lastLevelUp;
+            if (!compact) {
+                // Compact data was disabled, move back to separate keys
+                writeLegacyKeys();
+                VillagerDataRecord.remove(dataContainer);
+            }
+            return;
+        }
+
+        this.optimizationType = readOptimizationType();
+        this.lastOptimize = readLong(Keyring.VillagerOptimizer.LAST_OPTIMIZE_SYSTIME_MILLIS);
+        this.lastRestock = readLong(Keyring.VillagerOptimizer.LAST_RESTOCK_SYSTIME_MILLIS);
+        this.lastLevelUp = readLong(Keyring.VillagerOptimizer.LAST_LEVELUP_SYSTIME_MILLIS);
+
+        if (compact && (optimizationType != OptimizationType.NONE || lastOptimize != 0L || lastRestock != 0L || lastLevelUp != 0L)) {
+            // Migrate separate keys into a single compact record
+            writeRecord();
+            for (Keyring.VillagerOptimizer key : Keyring.VillagerOptimizer.values()) {
+                if (key != Keyring.VillagerOptimizer.VILLAGER_DATA) dataContainer.remove(key.getKey());
+            }
+        }
+    }
+
+    private void writeRecord() {
+        new VillagerDataRecord(optimizationType, lastOptimize, lastRestock, lastLevelUp).write(dataContainer);
+    }
+
+    private void writeLegacyKeys() {
+        writeOptimizationType();
+        writeLong(Keyring.VillagerOptimizer.LAST_OPTIMIZE_SYSTIME_MILLIS, lastOptimize);
+        writeLong(Keyring.VillagerOptimizer.LAST_RESTOCK_SYSTIME_MILLIS, lastRestock);
+        writeLong(Keyring.VillagerOptimizer.LAST_LEVELUP_SYSTIME_MILLIS, lastLevelUp);
+    }
+
+    private void writeOptimizationType() {
+        if (compact) {
+            writeRecord();
+        } else if (optimizationType == OptimizationType.NONE) {
+            dataContainer.remove(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey());
+        } else {
+            dataContainer.set(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.BYTE, optimizationType.code());
+        }
+    }
+
+    private void writeLong(@NotNull Keyring.VillagerOptimizer key, long value) {
+        if (compact) {
+            writeRecord();
+        } else if (value != 0L) {
+            dataContainer.set(key.getKey(), PersistentDataType.LONG, value);
+        }
+    }
+
+    private @NotNull OptimizationType readOptimizationType() {
+        if (dataContainer.has(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.BYTE)) {
+            return OptimizationType.fromCode(dataContainer.get(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.BYTE));
+        }
+
+        // Versions before byte codes stored the type name. It is kept until the type changes, so downgrading still works.
+        if (!dataContainer.has(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.STRING)) {
+            return OptimizationType.NONE;
+        }
+        final String storedType = dataContainer.get(Keyring.VillagerOptimizer.OPTIMIZATION_TYPE.getKey(), PersistentDataType.STRING);
+        try {
+            return OptimizationType.valueOf(storedType);
+        } catch (IllegalArgumentException e) {
+            return OptimizationType.COMMAND; // Has the key, so it is optimized. Best we can do
+        }
+    }
+
+    private long readLong(@NotNull Keyring.VillagerOptimizer key) {
+        final Long stored = dataContainer.get(key.getKey(), PersistentDataType.LONG);
+        return stored == null ? 0L : stored;
+    }
+
+    @Override
+    public Keyring.Space getSpace() {
+        return Keyring.Space.VillagerOptimizer;
+    }
+
+    @Override
+    public boolean isOptimized() {
+        return optimizationType != OptimizationType.NONE;
+    }
+
+    @Override
+    public boolean canOptimize(long cooldown_millis) {
+        return System.currentTimeMillis() > lastOptimize + cooldown_millis;
+    }
+
+    @Override
+    public void setOptimizationType(OptimizationType type) {
+        if (optimizationType != type) {
+            optimizationType = type;
+            writeOptimizationType();
+        }
+    }
+
+    @Override
+    public @NotNull OptimizationType getOptimizationType() {
+        return optimizationType;
+    }
+
+    @Override
+    public void saveOptimizeTime() {
+        lastOptimize = System.currentTimeMillis();
+        writeLong(Keyring.VillagerOptimizer.LAST_OPTIMIZE_SYSTIME_MILLIS, lastOptimize);
+    }
+
+    @Override
+    public long getOptimizeCooldownMillis(long cooldown_millis) {
+        return Math.max(System.currentTimeMillis() - lastOptimize, cooldown_millis);
+    }
+
+    @Override
+    public boolean canRestock(long cooldown_millis) {
+        return lastRestock + cooldown_millis <= System.currentTimeMillis();
+    }
+
+    @Override
+    public void saveRestockTime() {
+        lastRestock = System.currentTimeMillis();
+        writeLong(Keyring.VillagerOptimizer.LAST_RESTOCK_SYSTIME_MILLIS, lastRestock);
+    }
+
+    @Override
+    public long getRestockCooldownMillis(long cooldown_millis) {
+        if (lastRestock > 0L)
+            return System.currentTimeMillis() - (lastRestock + cooldown_millis);
+        return cooldown_millis;
+    }
+
+    @Override
+    public boolean canLevelUp(long cooldown_millis) {
+        return System.currentTimeMillis() >= lastLevelUp + cooldown_millis;
+    }
+
+    @Override
+    public void saveLastLevelUp() {
+        lastLevelUp = System.currentTimeMillis();
+        writeLong(Keyring.VillagerOptimizer.LAST_LEVELUP_SYSTIME_MILLIS, lastLevelUp);
+    }
+
+    @Override
+    public long getLevelCooldownMillis(long cooldown_millis) {
+        if (lastLevelUp > 0L)
+            return System.currentTimeMillis() - (lastLevelUp + cooldown_millis);
+        return cooldown_millis;
+    }
+}
@@ -1,24 +1,37 @@
 package me.xginko.villageroptimizer.wrapper;
 
 import me.xginko.villageroptimizer.VillagerOptimizer;
+import me.xginko.villageroptimizer.config.Config;
 import me.xginko.villageroptimizer.enums.Keyring;
 import me.xginko.villageroptimizer.enums.OptimizationType;
-import org.bukkit.entity.Villager;
 import org.jetbrains.annotations.NotNull;
 
 public interface VillagerDataHandler {
 
-    static VillagerDataHandler[] forVillager(Villager villager) {
-        if (VillagerOptimizer.getConfiguration().support_other_plugins) {
+    static VillagerDataHandler[] forVillager(WrappedVillager wrappedVillager) {
+        final Config config = VillagerOptimizer.getConfiguration();
+        if (config.support_other_plugins && config.migrate_avl_villagers) {
+            // Has to happen before the main handler reads the villager's data
+            new AVLVillagerDataHandlerImpl(wrappedVillager).migrateToVillagerOptimizer();
+        }
+        final VillagerDataHandler mainHandler = config.snapshot_villager_data ?
+                new SnapshotVillagerDataHandlerImpl(wrappedVillager) : new MainVillagerDataHandlerImpl(wrappedVillager);
+        if (config.support_other_plugins && !config.migrate_avl_villagers) {
             return new VillagerDataHandler[]{
-                    new MainVillagerDataHandlerImpl(villager),
-                    new AVLVillagerDataHandlerImpl(villager)
+                    mainHandler,
+                    new AVLVillagerDataHandlerImpl(wrappedVillager)
             };
         } else {
-            return new VillagerDataHandler[]{ new MainVillagerDataHandlerImpl(villager) };
+            return new VillagerDataHandler[]{ mainHandler };
         }
     }
 
+    /**
+     * Re-reads any state the handler keeps in memory from the villager's PersistentDataContainer.
+     * Only needed if another plugin modified the container directly.
+     */
+    default void resync() {}
+
     /**
      * @return The namespace of the handler
      */
@@ -36,6 +49,9 @@ public interface VillagerDataHandler {
     boolean canOptimize(long cooldown_millis);
 
     /**
+     * Writes the OptimizationType to the villager's data. Needs to be called on the villager's thread.
+     * Use {@link WrappedVillager#setOptimizationType(OptimizationType)} to also update the villager's AI.
+     *
      * @param type OptimizationType the villager should be set to.
      */
     void setOptimizationType(OptimizationType type);
@@ -0,0 +1,69 @@
+package me.xginko.villageroptimizer.wrapper;
+
+import me.xginko.villageroptimizer.enums.Keyring;
+import me.xginko.villageroptimizer.enums.OptimizationType;
+import org.bukkit.persistence.PersistentDataContainer;
+import org.bukkit.persistence.PersistentDataType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compact storage format that keeps all VillagerOptimizer data of a villager in a single byte array entry
+ * instead of one entry per value. Layout: format version, optimization type, last optimize, last restock, last levelup.
+ */
+final class VillagerDataRecord {
+
+    private static final byte FORMAT_VERSION = 1;
+    private static final int SIZE = Byte.BYTES + Byte.BYTES + Long.BYTES * 3;
+
+    final @NotNull OptimizationType optimizationType;
+    final long lastOptimize, lastRestock, lastLevelUp;
+
+    VillagerDataRecord(@NotNull OptimizationType optimizationType, long lastOptimize, long lastRestock, long lastLevelUp) {
+        this.optimizationType = optimizationType;
+        this.lastOptimize = lastOptimize;
+        this.lastRestock = lastRestock;
+        this.lastLevelUp = lastLevelUp;
+    }
+
+    /**
+     * @return The record stored in the container or null if there is none or it has an unknown format.
+     */
+    static @Nullable VillagerDataRecord read(@NotNull PersistentDataContainer dataContainer) {
+        return fromBytes(dataContainer.get(Keyring.VillagerOptimizer.VILLAGER_DATA.getKey(), PersistentDataType.BYTE_ARRAY));
+    }
+
+    /**
+     * @return The record encoded in the bytes or null if there are none or they have an unknown format.
+     */
+    static @Nullable VillagerDataRecord fromBytes(@Nullable byte[] bytes) {
+        if (bytes == null || bytes.length != SIZE || bytes[0] != FORMAT_VERSION) return null;
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, SIZE - 1);
+        return new VillagerDataRecord(
+                OptimizationType.fromCode(buffer.get()),
+                buffer.getLong(),
+                buffer.getLong(),
+                buffer.getLong()
+        );
+    }
+
+    void write(@NotNull PersistentDataContainer dataContainer) {
+        dataContainer.set(Keyring.VillagerOptimizer.VILLAGER_DATA.getKey(), PersistentDataType.BYTE_ARRAY, toBytes());
+    }
+
+    @NotNull byte[] toBytes() {
+        final ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        buffer.put(FORMAT_VERSION);
+        buffer.put(optimizationType.code());
+        buffer.putLong(lastOptimize);
+        buffer.putLong(lastRestock);
+        buffer.putLong(lastLevelUp);
+        return buffer.array();
+    }
+
+    static void remove(@NotNull PersistentDataContainer dataContainer) {
+        dataContainer.remove(Keyring.VillagerOptimizer.VILLAGER_DATA.getKey());
+    }
+}
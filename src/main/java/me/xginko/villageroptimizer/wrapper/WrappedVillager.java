@@ -1,5 +1,6 @@
 package me.xginko.villageroptimizer.wrapper;
 
+import me.xginko.villageroptimizer.VillagerOptimizer;
 import me.xginko.villageroptimizer.enums.Keyring;
 import me.xginko.villageroptimizer.enums.OptimizationType;
 import org.bukkit.Location;
@@ -10,28 +11,51 @@ import org.bukkit.inventory.MerchantRecipe;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.lang.ref.WeakReference;
+
 public class WrappedVillager implements VillagerDataHandler {
 
-    private final @NotNull Villager villager;
+    private final @Nullable Villager villager;
+    private final @Nullable WeakReference<Villager> weakVillager;
     private final @NotNull VillagerDataHandler[] dataHandlers;
 
     public WrappedVillager(@NotNull Villager villager) {
-        this.villager = villager;
-        this.dataHandlers = VillagerDataHandler.forVillager(villager);
+        if (VillagerOptimizer.getConfiguration().weak_entity_references) {
+            this.villager = null;
+            this.weakVillager = new WeakReference<>(villager);
+        } else {
+            this.villager = villager;
+            this.weakVillager = null;
+        }
+        this.dataHandlers = VillagerDataHandler.forVillager(this);
     }
 
     /**
+     * Wrappers handed out by {@link me.xginko.villageroptimizer.VillagerCache} always belong to the villager they were
+     * looked up with, so their villager can't be garbage collected while the caller still holds it.
+     *
      * @return The villager inside the wrapper.
+     * @throws IllegalStateException if weak entity references are enabled and the villager was garbage collected.
      */
     public @NotNull Villager villager() {
+        final Villager villager = villagerIfPresent();
+        if (villager == null) throw new IllegalStateException("The villager of this wrapper was garbage collected.");
         return villager;
     }
 
+    /**
+     * @return The villager inside the wrapper, or null if weak entity references are enabled
+     *         and the villager was unloaded and garbage collected.
+     */
+    public @Nullable Villager villagerIfPresent() {
+        return villager != null ? villager : weakVillager.get();
+    }
+
     /**
      * Restock all trading recipes.
      */
     public void restock() {
-        for (MerchantRecipe recipe : villager.getRecipes()) {
+        for (MerchantRecipe recipe : villager().getRecipes()) {
             recipe.setUses(0);
         }
     }
@@ -41,7 +65,7 @@ public class WrappedVillager implements VillagerDataHandler {
      */
     public int calculateLevel() {
         // https://minecraft.fandom.com/wiki/Trading#Mechanics
-        int vilEXP = villager.getVillagerExperience();
+        int vilEXP = villager().getVillagerExperience();
         if (vilEXP >= 250) return 5;
         if (vilEXP >= 150) return 4;
         if (vilEXP >= 70) return 3;
@@ -54,19 +78,19 @@ public class WrappedVillager implements VillagerDataHandler {
      */
     public boolean canLooseProfession() {
         // A villager with a level of 1 and no trading experience is liable to lose its profession.
-        return villager.getVillagerLevel() <= 1 && villager.getVillagerExperience() <= 0;
+        return villager().getVillagerLevel() <= 1 && villager().getVillagerExperience() <= 0;
     }
 
     public void sayNo() {
         try {
-            villager.shakeHead();
+            villager().shakeHead();
         } catch (NoSuchMethodError e) {
-            villager.getWorld().playSound(villager.getEyeLocation(), Sound.ENTITY_VILLAGER_NO, 1.0F, 1.0F);
+            villager().getWorld().playSound(villager().getEyeLocation(), Sound.ENTITY_VILLAGER_NO, 1.0F, 1.0F);
         }
     }
 
     public @Nullable Location getJobSite() {
-        return villager.getMemory(MemoryKey.JOB_SITE);
+        return villager().getMemory(MemoryKey.JOB_SITE);
     }
 
     @Override
@@ -74,6 +98,13 @@ public class WrappedVillager implements VillagerDataHandler {
         return Keyring.Space.VillagerOptimizer;
     }
 
+    @Override
+    public void resync() {
+        for (VillagerDataHandler handler : dataHandlers) {
+            handler.resync();
+        }
+    }
+
     @Override
     public boolean isOptimized() {
         for (VillagerDataHandler handler : dataHandlers) {
@@ -96,13 +127,34 @@ public class WrappedVillager implements VillagerDataHandler {
 
     @Override
     public void setOptimizationType(OptimizationType type) {
+        // Changing a trading villager's AI would break the trade, so this may be applied later
+        VillagerOptimizer.getPendingOptimizations().submit(this, type);
+    }
+
+    /**
+     * Writes the OptimizationType and updates the villager's AI right away.
+     * Needs to be called on the villager's thread while it is not trading.
+     */
+    public void applyOptimizationType(OptimizationType type) {
         for (VillagerDataHandler handler : dataHandlers) {
             handler.setOptimizationType(type);
         }
+        VillagerOptimizer.getCache().updateChunkIndex(villager(), type != OptimizationType.NONE);
+        if (type == OptimizationType.NONE) {
+            villager().setAware(true);
+            villager().setAI(true);
+        } else {
+            villager().setAware(false);
+        }
     }
 
+    /**
+     * @return The OptimizationType of a submitted change that wasn't applied yet, otherwise the stored one.
+     */
     @Override
     public @NotNull OptimizationType getOptimizationType() {
+        final OptimizationType pending = VillagerOptimizer.getPendingOptimizations().pendingType(villager().getUniqueId());
+        if (pending != null) return pending;
         OptimizationType result = OptimizationType.NONE;
         for (VillagerDataHandler handler : dataHandlers) {
             OptimizationType type = handler.getOptimizationType();
@@ -0,0 +1,49 @@
+package me.xginko.villageroptimizer.enums;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OptimizationTypeTest {
+
+    @Test
+    void resolvesEveryTypeFromItsCode() {
+        for (OptimizationType type : OptimizationType.values()) {
+            assertSame(type, OptimizationType.fromCode(type.code()));
+        }
+    }
+
+    @Test
+    void keepsThePersistedCodes() {
+        // Villagers store these codes, changing one would change the type of already optimized villagers
+        assertEquals(0, OptimizationType.COMMAND.code());
+        assertEquals(1, OptimizationType.NAMETAG.code());
+        assertEquals(2, OptimizationType.WORKSTATION.code());
+        assertEquals(3, OptimizationType.BLOCK.code());
+        assertEquals(4, OptimizationType.NONE.code());
+        assertEquals(5, OptimizationType.AUTOMATIC.code());
+        assertEquals(6, OptimizationType.THROTTLED.code());
+        assertEquals(7, OptimizationType.CONFINED.code());
+    }
+
+    @Test
+    void neverReusesACode() {
+        final Set<Byte> codes = new HashSet<>();
+        for (OptimizationType type : OptimizationType.values()) {
+            assertTrue(codes.add(type.code()), "Code " + type.code() + " is used twice");
+        }
+    }
+
+    @Test
+    void readsUnknownCodesAsNone() {
+        assertSame(OptimizationType.NONE, OptimizationType.fromCode((byte) -1));
+        assertSame(OptimizationType.NONE, OptimizationType.fromCode((byte) 8));
+        assertSame(OptimizationType.NONE, OptimizationType.fromCode(Byte.MAX_VALUE));
+        assertSame(OptimizationType.NONE, OptimizationType.fromCode(Byte.MIN_VALUE));
+    }
+}
@@ -0,0 +1,56 @@
+package me.xginko.villageroptimizer.modules;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class VillagerChunkLimitTest {
+
+    @Test
+    void selectsTheSmallestKeys() {
+        final Random random = new Random(16L);
+        for (int run = 0; run < 500; run++) {
+            final int size = 1 + random.nextInt(64);
+            final int k = 1 + random.nextInt(size);
+            final long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                // Few distinct ranks, like villagers of the same profession
+                keys[i] = (long) random.nextInt(4) << 32 | i;
+            }
+
+            final long[] expected = keys.clone();
+            Arrays.sort(expected);
+            VillagerChunkLimit.selectSmallest(keys, k);
+
+            final long[] selected = Arrays.copyOf(keys, k);
+            Arrays.sort(selected);
+            assertArrayEquals(Arrays.copyOf(expected, k), selected);
+        }
+    }
+
+    @Test
+    void keepsCollectionOrderBetweenEqualRanks() {
+        final long[] keys = new long[10];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = (long) Integer.MAX_VALUE << 32 | i; // Profession not in the priority list
+        }
+        keys[7] = 0L << 32 | 7;
+
+        VillagerChunkLimit.selectSmallest(keys, 3);
+
+        final long[] selected = Arrays.copyOf(keys, 3);
+        Arrays.sort(selected);
+        assertArrayEquals(new long[]{ 7L, (long) Integer.MAX_VALUE << 32, (long) Integer.MAX_VALUE << 32 | 1 }, selected);
+    }
+
+    @Test
+    void selectsEverythingWhenAllKeysAreWanted() {
+        final long[] keys = { 5L, 3L, 9L, 1L };
+        VillagerChunkLimit.selectSmallest(keys, keys.length);
+        Arrays.sort(keys);
+        assertArrayEquals(new long[]{ 1L, 3L, 5L, 9L }, keys);
+    }
+}
@@ -0,0 +1,152 @@
+package me.xginko.villageroptimizer.tools;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AVLRegionMigratorTest {
+
+    private static final int SECTOR_BYTES = 4096;
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void rewritesChunksThatStillFitInPlace() throws IOException {
+        final Path regionFile = folder.resolve("r.0.0.mca");
+        final byte[] original = region();
+        Files.write(regionFile, original);
+
+        final byte[][] migrated = new byte[1024][];
+        migrated[0] = filled(100, (byte) 7);
+        AVLRegionMigrator.writeRegion(regionFile, original, migrated, 1234);
+
+        final byte[] written = Files.readAllBytes(regionFile);
+        final ByteBuffer header = ByteBuffer.wrap(written);
+        assertEquals(original.length, written.length);
+        assertEquals(2 << 8 | 1, header.getInt(0));
+        assertEquals(1234, header.getInt(SECTOR_BYTES));
+        assertEquals(101, header.getInt(2 * SECTOR_BYTES));
+        assertEquals(2, written[2 * SECTOR_BYTES + 4]);
+        assertArrayEquals(migrated[0], Arrays.copyOfRange(written, 2 * SECTOR_BYTES + 5, 2 * SECTOR_BYTES + 105));
+        assertUntouched(original, written);
+    }
+
+    @Test
+    void appendsChunksThatOutgrewTheirSectors() throws IOException {
+        final Path regionFile = folder.resolve("r.0.0.mca");
+        // Region files don't always end on a full sector
+        final byte[] original = Arrays.copyOf(region(), 5 * SECTOR_BYTES - 100);
+        Files.write(regionFile, original);
+
+        final byte[][] migrated = new byte[1024][];
+        migrated[0] = filled(6000, (byte) 9);
+        AVLRegionMigrator.writeRegion(regionFile, original, migrated, 1234);
+
+        final byte[] written = Files.readAllBytes(regionFile);
+        final ByteBuffer header = ByteBuffer.wrap(written);
+        assertEquals(7 * SECTOR_BYTES, written.length);
+        assertEquals(5 << 8 | 2, header.getInt(0));
+        assertEquals(6001, header.getInt(5 * SECTOR_BYTES));
+        assertArrayEquals(migrated[0], Arrays.copyOfRange(written, 5 * SECTOR_BYTES + 5, 5 * SECTOR_BYTES + 6005));
+        assertUntouched(original, written);
+    }
+
+    @Test
+    void storesChunksOverMaximumSizeExternally() throws IOException {
+        final Path regionFile = folder.resolve("r.1.-1.mca");
+        final byte[] original = region();
+        Files.write(regionFile, original);
+
+        final byte[][] migrated = new byte[1024][];
+        migrated[33] = new byte[256 * SECTOR_BYTES];
+        new Random(10L).nextBytes(migrated[33]);
+        AVLRegionMigrator.writeRegion(regionFile, original, migrated, 1234);
+
+        // Chunk 33 of region 1, -1 is chunk 33, -31
+        final Path external = folder.resolve("c.33.-31.mcc");
+        assertTrue(Files.exists(external));
+        assertArrayEquals(migrated[33], Files.readAllBytes(external));
+
+        final byte[] written = Files.readAllBytes(regionFile);
+        final ByteBuffer header = ByteBuffer.wrap(written);
+        assertEquals(5 << 8 | 1, header.getInt(33 * 4));
+        assertEquals(1, header.getInt(5 * SECTOR_BYTES));
+        assertEquals((byte) 130, written[5 * SECTOR_BYTES + 4]);
+        assertUntouched(original, written);
+
+        try (Stream<Path> files = Files.list(folder)) {
+            assertFalse(files.anyMatch(file -> file.getFileName().toString().endsWith(".tmp")));
+        }
+    }
+
+    @Test
+    void refusesExternalChunksWithoutRegionCoordinates() throws IOException {
+        final Path regionFile = folder.resolve("region.mca");
+        final byte[] original = region();
+        Files.write(regionFile, original);
+
+        final byte[][] migrated = new byte[1024][];
+        migrated[0] = new byte[256 * SECTOR_BYTES];
+
+        assertThrows(IOException.class, () -> AVLRegionMigrator.writeRegion(regionFile, original, migrated, 1234));
+        assertArrayEquals(original, Files.readAllBytes(regionFile));
+    }
+
+    /**
+     * A region with chunk 0 in sector 2, chunk 3 in sectors 3 and 4 and a header entry of chunk 1
+     * that points far past the end of the file.
+     */
+    private static byte[] region() {
+        final ByteBuffer region = ByteBuffer.allocate(5 * SECTOR_BYTES);
+        putChunk(region, 0, 2, 1, filled(50, (byte) 1));
+        putChunk(region, 3, 3, 2, filled(5000, (byte) 3));
+        region.putInt(4, 5000 << 8 | 1);
+        region.putInt(SECTOR_BYTES + 4, 777);
+        return region.array();
+    }
+
+    private static void putChunk(ByteBuffer region, int index, int sector, int sectors, byte[] data) {
+        region.putInt(index * 4, sector << 8 | sectors);
+        region.putInt(SECTOR_BYTES + index * 4, 42);
+        region.putInt(sector * SECTOR_BYTES, data.length + 1);
+        region.put(sector * SECTOR_BYTES + 4, (byte) 2);
+        for (int i = 0; i < data.length; i++) {
+            region.put(sector * SECTOR_BYTES + 5 + i, data[i]);
+        }
+    }
+
+    /**
+     * Chunks 1 and 3 were not migrated, so their header entries and data have to stay byte for byte the same.
+     */
+    private static void assertUntouched(byte[] original, byte[] written) {
+        final ByteBuffer before = ByteBuffer.wrap(original), after = ByteBuffer.wrap(written);
+        for (int index : new int[]{ 1, 3 }) {
+            assertEquals(before.getInt(index * 4), after.getInt(index * 4));
+            assertEquals(before.getInt(SECTOR_BYTES + index * 4), after.getInt(SECTOR_BYTES + index * 4));
+        }
+        assertArrayEquals(
+                Arrays.copyOfRange(original, 3 * SECTOR_BYTES, Math.min(original.length, 5 * SECTOR_BYTES)),
+                Arrays.copyOfRange(written, 3 * SECTOR_BYTES, Math.min(original.length, 5 * SECTOR_BYTES))
+        );
+    }
+
+    private static byte[] filled(int length, byte value) {
+        final byte[] bytes = new byte[length];
+        Arrays.fill(bytes, value);
+        return bytes;
+    }
+}
@@ -0,0 +1,92 @@
+package me.xginko.villageroptimizer.tools;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NBTTest {
+
+    @Test
+    void roundTripsEveryTagType() throws IOException {
+        final Map<String, Object> bukkitValues = new LinkedHashMap<>();
+        bukkitValues.put("villageroptimizer:optimization-type", (byte) 2);
+        bukkitValues.put("villageroptimizer:last-optimize", 1_700_000_000_000L);
+
+        final Map<String, Object> villager = new LinkedHashMap<>();
+        villager.put("id", "minecraft:villager");
+        villager.put("Health", 20.0F);
+        villager.put("Motion", new NBT.ListTag(NBT.TAG_DOUBLE, new ArrayList<>(Arrays.asList(0.5D, -0.25D, 0.0D))));
+        villager.put("UUID", new int[]{ 1, -2, 3, -4 });
+        villager.put("BukkitValues", bukkitValues);
+
+        final Map<String, Object> root = new LinkedHashMap<>();
+        root.put("DataVersion", 3700);
+        root.put("Short", (short) -7);
+        root.put("Bytes", new byte[]{ 1, 2, 3 });
+        root.put("Longs", new long[]{ Long.MIN_VALUE, 0L, Long.MAX_VALUE });
+        root.put("Entities", new NBT.ListTag(NBT.TAG_COMPOUND, new ArrayList<>(Collections.singletonList(villager))));
+
+        final byte[] written = write(root);
+        final Map<String, Object> read = read(written);
+
+        // Writing what was read has to give the exact same bytes again
+        assertArrayEquals(written, write(read));
+        assertEquals(3700, read.get("DataVersion"));
+        assertArrayEquals(new long[]{ Long.MIN_VALUE, 0L, Long.MAX_VALUE }, (long[]) read.get("Longs"));
+
+        final NBT.ListTag entities = (NBT.ListTag) read.get("Entities");
+        assertEquals(NBT.TAG_COMPOUND, entities.elementType);
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> readVillager = (Map<String, Object>) entities.elements.get(0);
+        assertEquals("minecraft:villager", readVillager.get("id"));
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> readBukkitValues = (Map<String, Object>) readVillager.get("BukkitValues");
+        assertEquals((byte) 2, readBukkitValues.get("villageroptimizer:optimization-type"));
+        assertEquals(1_700_000_000_000L, readBukkitValues.get("villageroptimizer:last-optimize"));
+    }
+
+    @Test
+    void writesEmptyListsLikeVanilla() throws IOException {
+        final Map<String, Object> root = new LinkedHashMap<>();
+        root.put("Entities", new NBT.ListTag(NBT.TAG_COMPOUND, new ArrayList<>()));
+
+        final NBT.ListTag read = (NBT.ListTag) read(write(root)).get("Entities");
+
+        assertEquals(NBT.TAG_END, read.elementType);
+        assertTrue(read.elements.isEmpty());
+    }
+
+    @Test
+    void rejectsRootsThatAreNoCompound() {
+        final byte[] stringRoot = { NBT.TAG_STRING, 0, 0, 0, 1, 'x' };
+        assertThrows(IOException.class, () -> read(stringRoot));
+    }
+
+    private static byte[] write(Map<String, Object> root) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            NBT.writeRoot(out, root);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Map<String, Object> read(byte[] bytes) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            return NBT.readRoot(in);
+        }
+    }
+}
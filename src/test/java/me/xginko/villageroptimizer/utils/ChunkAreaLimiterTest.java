@@ -0,0 +1,130 @@
+package me.xginko.villageroptimizer.utils;
+
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkAreaLimiterTest {
+
+    @Test
+    void leavesAreasWithinTheLimitUntouched() {
+        final Long2IntOpenHashMap counts = new Long2IntOpenHashMap();
+        counts.put(chunkKey(0, 0), 10);
+        counts.put(chunkKey(1, 1), 10);
+        counts.put(chunkKey(-1, 0), 10);
+
+        final Long2IntOpenHashMap removed = enforce(counts, 3, 30);
+
+        assertTrue(removed.isEmpty());
+    }
+
+    @Test
+    void removesFromTheFullestChunkFirst() {
+        final Long2IntOpenHashMap counts = new Long2IntOpenHashMap();
+        counts.put(chunkKey(0, 0), 4);
+        counts.put(chunkKey(1, 0), 12);
+
+        final Long2IntOpenHashMap removed = enforce(counts, 2, 10);
+
+        assertEquals(1, removed.size());
+        assertEquals(6, removed.get(chunkKey(1, 0)));
+    }
+
+    @Test
+    void bringsEveryAreaDownToTheLimit() {
+        final Random random = new Random(19L);
+        for (int run = 0; run < 50; run++) {
+            final Long2IntOpenHashMap counts = new Long2IntOpenHashMap();
+            for (int i = 0; i < 60; i++) {
+                // Negative coordinates as well, chunk keys pack them as unsigned halves
+                counts.put(chunkKey(random.nextInt(24) - 12, random.nextInt(24) - 12), 1 + random.nextInt(20));
+            }
+            final int windowSize = 2 + random.nextInt(4), maxPerWindow = 10 + random.nextInt(40);
+
+            assertValid(counts, enforce(counts, windowSize, maxPerWindow), windowSize, maxPerWindow);
+        }
+    }
+
+    @Test
+    void limitsClustersTooLargeForASummedAreaTable() {
+        // A diagonal chain where every chunk shares a window with the next one, spanning far more than 2^18 chunks
+        final int windowSize = 8;
+        final Long2IntOpenHashMap counts = new Long2IntOpenHashMap();
+        for (int i = 0; i < 600; i++) {
+            counts.put(chunkKey(i * (windowSize - 1), i * (windowSize - 1)), 30);
+        }
+
+        final Long2IntOpenHashMap removed = enforce(counts, windowSize, 40);
+
+        assertValid(counts, removed, windowSize, 40);
+        assertFalse(removed.isEmpty());
+    }
+
+    @Test
+    void limitsDistantClustersIndependently() {
+        final Long2IntOpenHashMap near = new Long2IntOpenHashMap(), far = new Long2IntOpenHashMap(), both = new Long2IntOpenHashMap();
+        final Random random = new Random(7L);
+        for (int i = 0; i < 20; i++) {
+            near.put(chunkKey(random.nextInt(6), random.nextInt(6)), 1 + random.nextInt(30));
+            far.put(chunkKey(1_000_000 + random.nextInt(6), -1_000_000 + random.nextInt(6)), 1 + random.nextInt(30));
+        }
+        for (Long2IntMap.Entry entry : near.long2IntEntrySet()) both.put(entry.getLongKey(), entry.getIntValue());
+        for (Long2IntMap.Entry entry : far.long2IntEntrySet()) both.put(entry.getLongKey(), entry.getIntValue());
+
+        final Long2IntOpenHashMap expected = enforce(near, 4, 25);
+        for (Long2IntMap.Entry entry : enforce(far, 4, 25).long2IntEntrySet()) {
+            expected.put(entry.getLongKey(), entry.getIntValue());
+        }
+
+        assertEquals(expected, enforce(both, 4, 25));
+    }
+
+    private static Long2IntOpenHashMap enforce(Long2IntOpenHashMap counts, int windowSize, int maxPerWindow) {
+        final Long2IntOpenHashMap removed = new Long2IntOpenHashMap();
+        ChunkAreaLimiter.enforce(counts, windowSize, maxPerWindow, (chunkX, chunkZ, amount) -> {
+            assertTrue(amount > 0, "Removal of " + amount + " villagers");
+            removed.addTo(chunkKey(chunkX, chunkZ), amount);
+        });
+        return removed;
+    }
+
+    /**
+     * Sums every window that contains a chunk chunk by chunk and checks it against the limit.
+     */
+    private static void assertValid(Long2IntOpenHashMap counts, Long2IntOpenHashMap removed, int windowSize, int maxPerWindow) {
+        final Long2IntOpenHashMap remaining = new Long2IntOpenHashMap();
+        for (Long2IntMap.Entry entry : counts.long2IntEntrySet()) {
+            final int left = entry.getIntValue() - removed.get(entry.getLongKey());
+            assertTrue(left >= 0, "Removed more villagers than chunk " + entry.getLongKey() + " had");
+            remaining.put(entry.getLongKey(), left);
+        }
+        for (Long2IntMap.Entry removal : removed.long2IntEntrySet()) {
+            assertTrue(counts.get(removal.getLongKey()) > 0, "Removed villagers from an empty chunk");
+        }
+
+        for (Long2IntMap.Entry entry : counts.long2IntEntrySet()) {
+            final int x = (int) entry.getLongKey(), z = (int) (entry.getLongKey() >> 32);
+            for (int windowX = x - windowSize + 1; windowX <= x; windowX++) {
+                for (int windowZ = z - windowSize + 1; windowZ <= z; windowZ++) {
+                    long sum = 0L;
+                    for (int chunkX = windowX; chunkX < windowX + windowSize; chunkX++) {
+                        for (int chunkZ = windowZ; chunkZ < windowZ + windowSize; chunkZ++) {
+                            sum += remaining.get(chunkKey(chunkX, chunkZ));
+                        }
+                    }
+                    assertTrue(sum <= maxPerWindow, "Window at " + windowX + ", " + windowZ + " still has " + sum + " villagers");
+                }
+            }
+        }
+    }
+
+    private static long chunkKey(int x, int z) {
+        return (long) x & 0xffffffffL | ((long) z & 0xffffffffL) << 32;
+    }
+}
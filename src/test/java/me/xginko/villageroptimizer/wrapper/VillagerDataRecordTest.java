@@ -0,0 +1,59 @@
+package me.xginko.villageroptimizer.wrapper;
+
+import me.xginko.villageroptimizer.enums.OptimizationType;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class VillagerDataRecordTest {
+
+    @Test
+    void roundTripsEveryValue() {
+        for (OptimizationType type : OptimizationType.values()) {
+            final VillagerDataRecord record = new VillagerDataRecord(type, 1_700_000_000_000L, -1L, Long.MAX_VALUE);
+
+            final VillagerDataRecord read = VillagerDataRecord.fromBytes(record.toBytes());
+
+            assertNotNull(read);
+            assertEquals(type, read.optimizationType);
+            assertEquals(1_700_000_000_000L, read.lastOptimize);
+            assertEquals(-1L, read.lastRestock);
+            assertEquals(Long.MAX_VALUE, read.lastLevelUp);
+        }
+    }
+
+    @Test
+    void storesTheTypeAsItsCode() {
+        final byte[] bytes = new VillagerDataRecord(OptimizationType.WORKSTATION, 0L, 0L, 0L).toBytes();
+
+        assertEquals(26, bytes.length);
+        assertEquals(1, bytes[0]);
+        assertEquals(OptimizationType.WORKSTATION.code(), bytes[1]);
+    }
+
+    @Test
+    void rejectsUnknownFormats() {
+        final byte[] bytes = new VillagerDataRecord(OptimizationType.NAMETAG, 1L, 2L, 3L).toBytes();
+
+        assertNull(VillagerDataRecord.fromBytes(null));
+        assertNull(VillagerDataRecord.fromBytes(new byte[0]));
+        assertNull(VillagerDataRecord.fromBytes(Arrays.copyOf(bytes, bytes.length - 1)));
+        bytes[0] = 2;
+        assertNull(VillagerDataRecord.fromBytes(bytes));
+    }
+
+    @Test
+    void readsUnknownTypeCodesAsNone() {
+        final byte[] bytes = new VillagerDataRecord(OptimizationType.COMMAND, 0L, 0L, 0L).toBytes();
+        bytes[1] = 100;
+
+        final VillagerDataRecord read = VillagerDataRecord.fromBytes(bytes);
+
+        assertNotNull(read);
+        assertEquals(OptimizationType.NONE, read.optimizationType);
+    }
+}